@@ -1,29 +1,130 @@
 package org.example;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * Класс предоставляет методы для взаимодействия с API Честного знака.
  * Поддерживает ограничение на количество запросов в заданное время.
  */
-public class CrptApi {
+public class CrptApi implements AutoCloseable {
 
     private static final String API_URL = "https://ismp.crpt.ru/api/v3/lk/documents/create";
-    private static final HttpClient httpClient = HttpClient.newHttpClient();
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    // Разрешение, после которого на сетевой обмен останется меньше, не резервируется
+    private static final long MIN_SEND_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Наименьшая пауза перед повторной отправкой записи журнала; у RetryPolicy.NONE пауза нулевая,
+    // и при открытом размыкателе диспетчер крутился бы вхолостую
+    private static final long OUTBOX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Общий неблокирующий пул буферов сериализации вместо ThreadLocal, который бесполезен для виртуальных потоков
+    private static final ObjectMapper objectMapper = new ObjectMapper(JsonFactory.builder()
+            .recyclerPool(JsonRecyclerPools.sharedLockFreePool())
+            .build());
+    private static final System.Logger logger = System.getLogger(CrptApi.class.getName());
+    static final ObjectWriter documentWriter = objectMapper.writerFor(CreateGoodsDocumentRequest.class);
 
-    private final BlockingQueue<Long> requestTimes;
-    private final int requestLimit;
-    private final Duration duration;
+    private final RateLimiter rateLimiter;
+    private final HttpClient httpClient;
+    // Пул обработчиков HttpClient, либо null для пула по умолчанию, который закрывает сам HttpClient
+    private final ExecutorService httpExecutor;
+    private final ExecutorService executor;
+    private final DocumentListener listener;
+    private final int streamingThreshold;
+    private final int maxInFlight;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final Duration requestTimeout;
+    private final URI apiUri;
+    private final Outbox outbox;
+    private final BlockingQueue<Outbox.Entry> outboxQueue = new LinkedBlockingQueue<>();
+    private final Thread outboxDispatcher;
+    private final DedupIndex dedupIndex;
+    private final boolean coalescing;
+    private final PermitScheduler permitScheduler;
+    private final TokenProvider tokenProvider;
+    private final DocumentSigner signer;
+    private final ExecutorService signerPool;
+    private final int maxQueuedPermits;
+    private final long maxPermitWaitNanos;
+    private final AtomicInteger queuedPermits = new AtomicInteger();
+    private final ConcurrentHashMap<String, InFlightBody> inFlightBodies = new ConcurrentHashMap<>();
 
     /**
      * @param timeUnit     Единица измерения времени для ограничения запросов (секунды, минуты и т.д.).
@@ -31,13 +132,92 @@ public class CrptApi {
      * @throws IllegalArgumentException если requestLimit меньше или равен нулю, либо неподдерживаемый TimeUnit.
      */
     public CrptApi(TimeUnit timeUnit, int requestLimit) {
-        if (requestLimit <= 0) {
-            throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+        this(builder().requestLimit(timeUnit, requestLimit));
+    }
+
+    /**
+     * @param rateLimiter Ограничитель частоты запросов, например {@link TokenBucketRateLimiter}.
+     */
+    public CrptApi(RateLimiter rateLimiter) {
+        this(builder().rateLimiter(rateLimiter));
+    }
+
+    private CrptApi(Builder builder) {
+        if (builder.rateLimiter == null) {
+            throw new IllegalArgumentException("rateLimiter must not be null");
+        }
+        this.rateLimiter = builder.rateLimiter;
+        this.listener = builder.listener;
+        this.streamingThreshold = builder.streamingThreshold;
+        this.maxInFlight = builder.maxInFlight;
+        this.retryPolicy = builder.retryPolicy;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.requestTimeout = builder.requestTimeout;
+        this.apiUri = builder.apiUri;
+        this.maxQueuedPermits = builder.maxQueuedPermits;
+        this.maxPermitWaitNanos = builder.maxPermitWait == null ? Long.MAX_VALUE : builder.maxPermitWait.toNanos();
+        this.coalescing = builder.coalescing;
+        if (builder.virtualThreads) {
+            // Обработчики HttpClient и задачи submit выполняются на виртуальных потоках
+            this.httpExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.httpClient = HttpClient.newBuilder()
+                    .connectTimeout(builder.connectTimeout)
+                    .executor(httpExecutor)
+                    .build();
+            this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            this.httpExecutor = null;
+            this.httpClient = HttpClient.newBuilder()
+                    .connectTimeout(builder.connectTimeout)
+                    .build();
+            this.executor = Executors.newCachedThreadPool(Thread.ofPlatform().daemon().factory());
+        }
+        this.signer = builder.signer;
+        this.signerPool = builder.signer == null
+                ? null
+                : Executors.newFixedThreadPool(builder.signerParallelism, Thread.ofPlatform().daemon().name("crpt-signer-", 0).factory());
+        this.tokenProvider = builder.tokenSource == null
+                ? null
+                : new TokenProvider(builder.tokenSource, builder.tokenRefreshAhead, executor);
+        this.permitScheduler = builder.priorityMode == null
+                ? null
+                : new PermitScheduler(rateLimiter, builder.priorityMode, executor);
+
+        if (builder.dedupTtl != null) {
+            try {
+                this.dedupIndex = new DedupIndex(builder.dedupTtl, builder.dedupStore);
+            } catch (IOException e) {
+                throw new CrptApiException("Failed to open deduplication store " + builder.dedupStore, e);
+            }
+        } else {
+            this.dedupIndex = null;
+        }
+
+        if (builder.outboxPath != null) {
+            try {
+                this.outbox = new Outbox(builder.outboxPath, builder.outboxCapacity);
+            } catch (IOException e) {
+                throw new CrptApiException("Failed to open outbox journal " + builder.outboxPath, e);
+            }
+            // Неподтвержденные записи, оставшиеся после перезапуска, отправляются первыми
+            outboxQueue.addAll(outbox.recover());
+            Thread.Builder threads = builder.virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            this.outboxDispatcher = threads.name("crpt-outbox-dispatcher").start(this::drainOutbox);
+        } else {
+            this.outbox = null;
+            this.outboxDispatcher = null;
         }
+    }
+
+    /**
+     * @return Построитель для настройки экземпляра CrptApi.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
 
-        this.requestTimes = new LinkedBlockingQueue<>(requestLimit);
-        this.requestLimit = requestLimit;
-        this.duration = switch (timeUnit) {
+    private static Duration windowOf(TimeUnit timeUnit) {
+        return switch (timeUnit) {
             case SECONDS -> Duration.ofSeconds(1);
             case MINUTES -> Duration.ofMinutes(1);
             case HOURS -> Duration.ofHours(1);
@@ -47,81 +227,3739 @@ public class CrptApi {
 
     /**
      * Метод createIntroduceGoodsDocument выполняет запрос к API для создания документа ввода в оборот товара, произведенного в РФ.
+     * Временные ошибки повторяются согласно {@link Builder#retryPolicy}.
      *
      * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @return Разобранный ответ API.
+     * @throws InterruptedException если поток был прерван до отправки документа. Прерывание во время сетевого
+     *                              обмена не теряет результат: метод дожидается ответа и восстанавливает флаг прерывания.
+     * @throws ApiErrorException    если API отклонило документ.
+     * @throws CrptApiException     если документ не удалось сериализовать или отправить.
+     */
+    public DocumentResponse createIntroduceGoodsDocument(CreateGoodsDocumentRequest request) throws InterruptedException {
+        return await(createIntroduceGoodsDocumentAsync(request));
+    }
+
+    /**
+     * Вариант {@link #createIntroduceGoodsDocument} с общим бюджетом времени на вызов.
+     * Бюджет покрывает сериализацию, ожидание разрешения, сетевой обмен и паузы между повторами.
+     * Если разрешение ограничителя не наступит до истечения бюджета с запасом на сетевой обмен,
+     * документ отклоняется сразу, не расходуя разрешение; полученное разрешение используется
+     * с оставшимся бюджетом.
+     *
+     * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @param timeout Бюджет времени на весь вызов.
+     * @return Разобранный ответ API.
+     * @throws InterruptedException      если поток был прерван во время ожидания доступа к API.
+     * @throws DeadlineExceededException если документ не удалось отправить в пределах бюджета.
+     */
+    public DocumentResponse createIntroduceGoodsDocument(CreateGoodsDocumentRequest request, Duration timeout)
+            throws InterruptedException {
+        return await(createIntroduceGoodsDocumentAsync(request, timeout));
+    }
+
+    /**
+     * Вариант {@link #createIntroduceGoodsDocument} с приоритетом и необязательным бюджетом времени.
+     * Приоритет учитывается, если включена {@link Builder#priorityScheduling}.
+     *
+     * @param request  Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @param priority Приоритет документа в очереди разрешений.
+     * @param timeout  Бюджет времени на весь вызов, либо null.
+     * @return Разобранный ответ API.
      * @throws InterruptedException если поток был прерван во время ожидания доступа к API.
      */
-    public void createIntroduceGoodsDocument(CreateGoodsDocumentRequest request) throws InterruptedException {
-        long now = System.nanoTime();
-        long startWindow = now - duration.toNanos();
+    public DocumentResponse createIntroduceGoodsDocument(CreateGoodsDocumentRequest request, Priority priority,
+                                                         Duration timeout) throws InterruptedException {
+        return await(createIntroduceGoodsDocumentAsync(request, priority, timeout));
+    }
+
+    /**
+     * Асинхронный вариант {@link #createIntroduceGoodsDocument}.
+     * Ожидание разрешения ограничителя планируется на таймере, а запрос отправляется через
+     * {@link HttpClient#sendAsync}, поэтому ни один поток не блокируется на время ожидания.
+     *
+     * Отмена future останавливает ожидание разрешения и повторы, но не прерывает уже отправленный запрос:
+     * в этом случае {@code cancel} возвращает false, а future завершится ответом API.
+     *
+     * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @return Future с ответом API; завершается {@link CrptApiException} при ошибке сериализации или отправки.
+     */
+    public CompletableFuture<DocumentResponse> createIntroduceGoodsDocumentAsync(CreateGoodsDocumentRequest request) {
+        return createIntroduceGoodsDocumentAsync(request, Priority.NORMAL, null);
+    }
+
+    /**
+     * Асинхронный вариант {@link #createIntroduceGoodsDocument(CreateGoodsDocumentRequest, Duration)}.
+     *
+     * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @param timeout Бюджет времени на весь вызов.
+     * @return Future с ответом API; завершается {@link DeadlineExceededException}, если бюджет исчерпан.
+     */
+    public CompletableFuture<DocumentResponse> createIntroduceGoodsDocumentAsync(CreateGoodsDocumentRequest request,
+                                                                                Duration timeout) {
+        return createIntroduceGoodsDocumentAsync(request, Priority.NORMAL, timeout);
+    }
+
+    /**
+     * Асинхронный вариант {@link #createIntroduceGoodsDocument(CreateGoodsDocumentRequest, Priority, Duration)}.
+     *
+     * @param request  Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @param priority Приоритет документа в очереди разрешений.
+     * @param timeout  Бюджет времени на весь вызов, либо null.
+     * @return Future с ответом API.
+     */
+    public CompletableFuture<DocumentResponse> createIntroduceGoodsDocumentAsync(CreateGoodsDocumentRequest request,
+                                                                                Priority priority,
+                                                                                Duration timeout) {
+        long deadlineNanos = timeout == null ? NO_DEADLINE : System.nanoTime() + timeout.toNanos();
+        return dispatch(request, () -> prepare(request, null), deadlineNanos, priority);
+    }
+
+    /**
+     * Пакетная отправка документов.
+     * Документы сериализуются параллельно и отправляются, как только это позволяет ограничитель;
+     * одновременно обрабатывается не более {@link Builder#maxInFlight} документов.
+     * Метод блокируется, пока не будут запущены все документы, но не ждет ответов.
+     *
+     * @param requests Документы для отправки.
+     * @return Future с ответом API для каждого документа, в порядке исходной коллекции.
+     * @throws InterruptedException если поток был прерван во время ожидания свободного места;
+     *                              уже запущенные документы при этом отменяются, кроме отправляемых в этот момент.
+     */
+    public List<CompletableFuture<DocumentResponse>> createIntroduceGoodsDocuments(
+            Collection<CreateGoodsDocumentRequest> requests) throws InterruptedException {
+        return createIntroduceGoodsDocuments(requests.stream(), Priority.NORMAL);
+    }
+
+    /**
+     * Пакетная отправка документов с заданным приоритетом, например {@link Priority#BULK} для догрузки архива.
+     *
+     * @see #createIntroduceGoodsDocuments(Collection)
+     */
+    public List<CompletableFuture<DocumentResponse>> createIntroduceGoodsDocuments(
+            Collection<CreateGoodsDocumentRequest> requests, Priority priority) throws InterruptedException {
+        return createIntroduceGoodsDocuments(requests.stream(), priority);
+    }
+
+    /**
+     * Пакетная отправка документов из потока; поток читается лениво по мере освобождения места.
+     *
+     * @see #createIntroduceGoodsDocuments(Collection)
+     */
+    public List<CompletableFuture<DocumentResponse>> createIntroduceGoodsDocuments(
+            Stream<CreateGoodsDocumentRequest> requests) throws InterruptedException {
+        return createIntroduceGoodsDocuments(requests, Priority.NORMAL);
+    }
+
+    /**
+     * Пакетная отправка документов из потока с заданным приоритетом.
+     *
+     * @see #createIntroduceGoodsDocuments(Stream)
+     */
+    public List<CompletableFuture<DocumentResponse>> createIntroduceGoodsDocuments(
+            Stream<CreateGoodsDocumentRequest> requests, Priority priority) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<DocumentResponse>> results = new ArrayList<>();
+        Iterator<CreateGoodsDocumentRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            CreateGoodsDocumentRequest request = iterator.next();
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // Вызывающий не получит future запущенных документов, поэтому и дождаться их не сможет
+                results.forEach(result -> result.cancel(true));
+                throw e;
+            }
+            CompletableFuture<DocumentResponse> result = dispatch(request, () -> prepare(request, executor), NO_DEADLINE, priority);
+            result.whenComplete((response, failure) -> inFlight.release());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Выполняет {@link #createIntroduceGoodsDocument} в фоновом потоке.
+     * В режиме {@link Builder#virtualThreads} каждый документ обрабатывается отдельным виртуальным потоком,
+     * поэтому одновременная отправка миллионов документов стоит килобайты памяти на документ.
+     *
+     * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @return Future с ответом API.
+     */
+    public Future<DocumentResponse> submit(CreateGoodsDocumentRequest request) {
+        return executor.submit(() -> createIntroduceGoodsDocument(request));
+    }
+
+    /**
+     * Записывает документ в журнал исходящих документов и сразу возвращает управление.
+     * Документ отправляется фоновым диспетчером со скоростью, допускаемой ограничителем,
+     * а результат передается {@link DocumentListener}. Запись подтверждается в журнале после ответа API,
+     * поэтому документы, не отправленные до остановки или сбоя, будут отправлены после перезапуска.
+     *
+     * @param request Данные документа в виде объекта CreateGoodsDocumentRequest.
+     * @throws IllegalStateException если журнал не настроен через {@link Builder#outbox}.
+     * @throws CrptApiException      если документ не удалось сериализовать или журнал заполнен.
+     */
+    public void enqueueIntroduceGoodsDocument(CreateGoodsDocumentRequest request) {
+        if (outbox == null) {
+            throw new IllegalStateException("Outbox is not configured");
+        }
+        byte[] payload;
+        try {
+            payload = documentWriter.writeValueAsBytes(request);
+        } catch (JsonProcessingException e) {
+            throw new CrptApiException("Failed to serialize document", e);
+        }
+        outboxQueue.add(outbox.append(payload));
+    }
+
+    /**
+     * Останавливает диспетчер журнала и завершает фоновые потоки.
+     * Диспетчер отменяет документы журнала, еще ожидающие разрешения, и дожидается ответов на уже отправленные,
+     * чтобы подтвердить их записи; неподтвержденные записи остаются в журнале до следующего запуска.
+     * Затем закрывает HttpClient, дожидаясь выполняющихся запросов, и дожидается задач, уже переданных пулу потоков.
+     * Асинхронные вызовы, ожидающие разрешения на таймере, не дожидаются и после закрытия завершаются ошибкой.
+     */
+    @Override
+    public void close() {
+        if (outboxDispatcher != null) {
+            outboxDispatcher.interrupt();
+            try {
+                outboxDispatcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Закрытие HttpClient освобождает его соединения и поток селектора
+        httpClient.close();
+        if (httpExecutor != null) {
+            httpExecutor.close();
+        }
+        executor.close();
+        if (signerPool != null) {
+            signerPool.close();
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (dedupIndex != null) {
+            dedupIndex.close();
+        }
+        if (tokenProvider != null) {
+            tokenProvider.close();
+        }
+    }
+
+    private void drainOutbox() {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Set<OutboxDispatch> dispatches = ConcurrentHashMap.newKeySet();
+        try {
+            while (true) {
+                Outbox.Entry entry = outboxQueue.take();
+                inFlight.acquire();
+                OutboxDispatch dispatch = dispatchOutboxEntry(entry);
+                dispatches.add(dispatch);
+                dispatch.settled().whenComplete((result, failure) -> {
+                    dispatches.remove(dispatch);
+                    inFlight.release();
+                });
+            }
+        } catch (InterruptedException e) {
+            // Остановка при закрытии CrptApi: журнал закрывается только после подтверждения отправленных записей,
+            // иначе их документы были бы отправлены повторно после перезапуска
+            dispatches.forEach(dispatch -> dispatch.result().cancel(false));
+            dispatches.forEach(dispatch -> dispatch.settled().handle((result, failure) -> null).join());
+        }
+    }
+
+    /**
+     * Отправка записи журнала.
+     *
+     * @param result  Результат отправки документа.
+     * @param settled Завершается после того, как запись подтверждена либо возвращена в очередь.
+     */
+    private record OutboxDispatch(CompletableFuture<DocumentResponse> result, CompletableFuture<?> settled) {
+    }
+
+    private OutboxDispatch dispatchOutboxEntry(Outbox.Entry entry) {
+        byte[] payload = outbox.read(entry);
+        CreateGoodsDocumentRequest request;
+        try {
+            request = objectMapper.readValue(payload, CreateGoodsDocumentRequest.class);
+        } catch (IOException e) {
+            // Поврежденная запись не должна бесконечно повторяться
+            outbox.ack(entry);
+            CompletableFuture<DocumentResponse> failed = CompletableFuture.failedFuture(
+                    new CrptApiException("Corrupted outbox entry", e));
+            return new OutboxDispatch(failed, failed);
+        }
+
+        Supplier<CompletableFuture<SerializedBody>> preparation = () -> signer == null
+                ? CompletableFuture.completedFuture(payload).thenApply(this::serializedBody)
+                : CompletableFuture.supplyAsync(() -> signedBody(request.docType(), payload), signerPool);
+        CallFuture result = dispatch(request, preparation, NO_DEADLINE, Priority.NORMAL);
+        CompletableFuture<DocumentResponse> settled = result.whenComplete((response, failure) -> {
+            Throwable cause = failure == null ? null : unwrap(failure);
+            // Отмененный при закрытии документ остается в журнале. Повторно отправляется только документ,
+            // который заведомо не дошел до API: после тайм-аута или ответа 5xx документ мог быть создан,
+            // и повтор создал бы дубликат, поэтому такая запись подтверждается, а слушатель уже получил ошибку
+            if (cause instanceof CancellationException) {
+                return;
+            }
+            if (cause != null && !result.mayHaveReachedServer()) {
+                long pauseNanos = Math.max(OUTBOX_RETRY_NANOS, retryPolicy.maxDelay().toNanos());
+                delay(pauseNanos, executor).thenRun(() -> outboxQueue.add(entry));
+            } else {
+                outbox.ack(entry);
+            }
+        });
+        return new OutboxDispatch(result, settled);
+    }
+
+    /**
+     * Отправляет документ с подавлением повторов doc_id. Тело готовится только после того, как doc_id
+     * занят этим вызовом, поэтому повтор не тратит время на сериализацию и подпись.
+     */
+    private CallFuture dispatch(CreateGoodsDocumentRequest request,
+                                Supplier<CompletableFuture<SerializedBody>> preparation,
+                                long deadlineNanos,
+                                Priority priority) {
+        Cancellation cancellation = new Cancellation();
+        String docId = request.docId();
+        if (dedupIndex == null || docId == null) {
+            CompletableFuture<SerializedBody> prepared = cancellation.track(preparation.get());
+            return new CallFuture(send(request, prepared, deadlineNanos, priority, cancellation), cancellation);
+        }
+
+        // Повтор уже отправленного doc_id получает прежний результат, не расходуя разрешение
+        CompletableFuture<DocumentResponse> result = new CompletableFuture<>();
+        DedupIndex.Entry entry;
+        while (true) {
+            entry = dedupIndex.claim(docId, result, cancellation);
+            if (entry.result() == result) {
+                break;
+            }
+            // Повтор присоединяется к первой отправке; от отправки, отмененной всеми вызывающими, результата не будет
+            if (entry.cancellation() == null || entry.cancellation().retain()) {
+                if (entry.cancellation() != null) {
+                    cancellation.link(entry.cancellation());
+                }
+                return new CallFuture(entry.result(), cancellation);
+            }
+            dedupIndex.abandon(docId, entry);
+        }
+        DedupIndex.Entry claimed = entry;
+        CompletableFuture<SerializedBody> prepared = cancellation.track(preparation.get());
+        send(request, prepared, deadlineNanos, priority, cancellation).whenComplete((response, failure) -> {
+            dedupIndex.complete(docId, claimed, response, failure);
+            if (failure == null) {
+                result.complete(response);
+            } else {
+                result.completeExceptionally(unwrap(failure));
+            }
+        });
+        return new CallFuture(result, cancellation);
+    }
+
+    private CompletableFuture<DocumentResponse> send(CreateGoodsDocumentRequest request,
+                                                     CompletableFuture<SerializedBody> prepared,
+                                                     long deadlineNanos,
+                                                     Priority priority,
+                                                     Cancellation cancellation) {
+        // Разрешение резервируется только после успешной сериализации
+        return prepared
+                .thenCompose(body -> coalesce(body, deadlineNanos, priority, cancellation, () -> sendWithRetry(newHttpRequest(body.publisher()),
+                        participantOf(request), deadlineNanos, priority, cancellation, 1,
+                        retryPolicy.baseDelay().toNanos())))
+                .exceptionallyCompose(failure -> CompletableFuture.failedFuture(
+                        unwrap(failure) instanceof CancellationException cancelled ? cancelled : asApiException(failure)))
+                .whenComplete((result, failure) -> notifyListener(request, result, failure));
+    }
+
+    /**
+     * Объединяет одновременные отправки одинаковых тел запроса в один HTTP-запрос с общим результатом.
+     * Вызов присоединяется к отправке, только если она не менее приоритетна и ее срок не раньше его собственного;
+     * собственный срок вызова при этом соблюдается. Иначе вызов отправляет документ сам.
+     * Общая отправка отменяется, только когда от нее отказались все присоединившиеся вызывающие.
+     */
+    private CompletableFuture<DocumentResponse> coalesce(SerializedBody body, long deadlineNanos, Priority priority,
+                                                         Cancellation cancellation,
+                                                         Supplier<CompletableFuture<DocumentResponse>> call) {
+        String key = body.contentHash();
+        if (key == null) {
+            return call.get();
+        }
+        InFlightBody shared = new InFlightBody(new CompletableFuture<>(), deadlineNanos, priority, cancellation);
+        while (true) {
+            InFlightBody existing = inFlightBodies.putIfAbsent(key, shared);
+            if (existing == null) {
+                break;
+            }
+            if (!existing.covers(deadlineNanos, priority)) {
+                // Менее приоритетная отправка задержала бы вызов, а более ранний срок сорвал бы его
+                return call.get();
+            }
+            if (existing.cancellation().retain()) {
+                cancellation.link(existing.cancellation());
+                return orDeadline(existing.result().copy(), deadlineNanos);
+            }
+            // Отмененная всеми отправка не завершится ответом: ее место занимает новая
+            if (inFlightBodies.replace(key, existing, shared)) {
+                break;
+            }
+        }
+        call.get().whenComplete((response, failure) -> {
+            inFlightBodies.remove(key, shared);
+            if (failure == null) {
+                shared.result().complete(response);
+            } else {
+                shared.result().completeExceptionally(unwrap(failure));
+            }
+        });
+        return shared.result().copy();
+    }
+
+    /**
+     * Завершает future исключением {@link DeadlineExceededException}, если он не завершится до срока.
+     */
+    private CompletableFuture<DocumentResponse> orDeadline(CompletableFuture<DocumentResponse> future,
+                                                           long deadlineNanos) {
+        if (deadlineNanos != NO_DEADLINE) {
+            delay(remainingNanos(deadlineNanos), executor)
+                    .thenRun(() -> future.completeExceptionally(new DeadlineExceededException()));
+        }
+        return future;
+    }
+
+    /**
+     * Отправка тела запроса, к которой могут присоединиться одновременные отправки того же тела.
+     *
+     * @param deadlineNanos Срок отправки.
+     * @param priority      Приоритет отправки в очереди разрешений.
+     */
+    private record InFlightBody(CompletableFuture<DocumentResponse> result, long deadlineNanos, Priority priority,
+                                Cancellation cancellation) {
+
+        /**
+         * @return true, если отправка не менее приоритетна и ее срок не раньше заданного.
+         */
+        boolean covers(long deadlineNanos, Priority priority) {
+            boolean laterDeadline = this.deadlineNanos == NO_DEADLINE
+                    || deadlineNanos != NO_DEADLINE && this.deadlineNanos - deadlineNanos >= 0;
+            return this.priority.compareTo(priority) <= 0 && laterDeadline;
+        }
+    }
+
+    private CompletableFuture<DocumentResponse> sendWithRetry(HttpRequest httpRequest, String participant,
+                                                              long deadlineNanos, Priority priority,
+                                                              Cancellation cancellation,
+                                                              int attempt, long previousDelayNanos) {
+        if (cancellation.isCancelled()) {
+            return CompletableFuture.failedFuture(new CancellationException());
+        }
+        long remainingNanos = remainingNanos(deadlineNanos);
+        if (remainingNanos <= 0) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException());
+        }
+
+        // При открытом размыкателе попытка отклоняется сразу, не расходуя разрешение
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new CircuitBreakerOpenException());
+        }
+
+        // Токен берется до разрешения, чтобы сбой авторизации не расходовал квоту.
+        // Каждая попытка, включая повторные, расходует собственное разрешение ограничителя
+        AtomicBoolean sent = new AtomicBoolean();
+        return authorize(httpRequest, participant)
+                .thenCompose(authorized -> acquirePermit(priority, deadlineNanos, cancellation)
+                        .thenCompose(ignored -> {
+                            HttpRequest timed = withDeadline(authorized, deadlineNanos);
+                            // Отправленный запрос не прерывается: API мог уже создать документ
+                            if (!cancellation.beginSending()) {
+                                return CompletableFuture.<HttpResponse<String>>failedFuture(new CancellationException());
+                            }
+                            sent.set(true);
+                            return httpClient.sendAsync(timed, HttpResponse.BodyHandlers.ofString())
+                                    .whenComplete((response, failure) -> cancellation.endSending());
+                        }))
+                .handle((response, failure) -> {
+                    Throwable cause = failure == null ? null : unwrap(failure);
+                    if (!sent.get()) {
+                        // Запрос не отправлялся (токен, разрешение, срок, отмена): размыкатель оценивает только
+                        // сетевые попытки, и пробный запрос возвращается неиспользованным
+                        if (circuitBreaker != null) {
+                            circuitBreaker.release();
+                        }
+                        return CompletableFuture.<DocumentResponse>failedFuture(cause);
+                    }
+                    if (failure != null ? !RetryPolicy.neverReachedServer(cause)
+                            : !RetryPolicy.isRefusedStatus(response.statusCode())) {
+                        cancellation.markReached();
+                    }
+                    if (response != null) {
+                        rateLimiter.onResponse(response);
+                        if (response.statusCode() == 401 && tokenProvider != null) {
+                            response.request().headers().firstValue("Authorization").ifPresent(
+                                    header -> tokenProvider.invalidate(participant, header.substring("Bearer ".length())));
+                        }
+                    }
+                    if (circuitBreaker != null) {
+                        circuitBreaker.record(failure == null && response.statusCode() < 500);
+                    }
+                    // Повтор запроса, который мог быть обработан, создал бы второй документ
+                    boolean retryable = failure != null
+                            ? retryPolicy.isRetryable(cause)
+                            : retryPolicy.isRetryable(response.statusCode());
+                    long delayNanos = retryPolicy.nextDelayNanos(previousDelayNanos);
+                    long pauseNanos = Math.max(delayNanos, failure == null ? RetryPolicy.retryAfterNanos(response) : 0);
+                    // Повтор, который не успеет до истечения бюджета, не выполняется
+                    if (retryable && attempt < retryPolicy.maxAttempts() && pauseNanos < remainingNanos(deadlineNanos)) {
+                        return cancellation.track(delay(pauseNanos, executor))
+                                .thenCompose(ignored -> sendWithRetry(httpRequest, participant, deadlineNanos, priority,
+                                        cancellation, attempt + 1, delayNanos));
+                    }
+                    if (failure != null) {
+                        return CompletableFuture.<DocumentResponse>failedFuture(unwrap(failure));
+                    }
+                    DocumentResponse result = DocumentResponse.of(response.statusCode(), response.body());
+                    return result.isSuccessful()
+                            ? CompletableFuture.completedFuture(result)
+                            : CompletableFuture.<DocumentResponse>failedFuture(new ApiErrorException(result));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Получает разрешение на попытку: через очередь приоритетов, если она включена, иначе резервированием.
+     * Разрешение, после которого до истечения бюджета не останется MIN_SEND_BUDGET_NANOS
+     * на сетевой обмен, не расходуется.
+     */
+    private CompletableFuture<Void> acquirePermit(Priority priority, long deadlineNanos, Cancellation cancellation) {
+        long remainingNanos = deadlineNanos == NO_DEADLINE
+                ? Long.MAX_VALUE
+                : remainingNanos(deadlineNanos) - MIN_SEND_BUDGET_NANOS;
+        if (remainingNanos <= 0) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException());
+        }
+        if (queuedPermits.incrementAndGet() > maxQueuedPermits) {
+            queuedPermits.decrementAndGet();
+            return CompletableFuture.failedFuture(new AdmissionRejectedException("Permit queue is full, request rejected"));
+        }
+        // Ожидание ограничено ближайшим из двух сроков: бюджетом вызова и maxPermitWait
+        boolean admissionBound = maxPermitWaitNanos < remainingNanos;
+        long budgetNanos = admissionBound ? maxPermitWaitNanos : remainingNanos;
+        Supplier<CrptApiException> onTimeout = admissionBound
+                ? () -> new AdmissionRejectedException("Permit wait limit exceeded, request rejected")
+                : DeadlineExceededException::new;
+
+        CompletableFuture<Void> permit;
+        if (permitScheduler != null) {
+            long giveUpNanos = budgetNanos == Long.MAX_VALUE ? NO_DEADLINE : System.nanoTime() + budgetNanos;
+            permit = permitScheduler.acquire(priority, giveUpNanos, onTimeout);
+        } else {
+            long waitNanos = rateLimiter.tryReserve(budgetNanos - 1);
+            permit = waitNanos < 0 ? CompletableFuture.failedFuture(onTimeout.get()) : delay(waitNanos, executor);
+        }
+        // Отмененный ожидающий снимается с очереди планировщика, не получив разрешения
+        return cancellation.track(permit).whenComplete((ignored, failure) -> queuedPermits.decrementAndGet());
+    }
+
+    private CompletableFuture<HttpRequest> authorize(HttpRequest httpRequest, String participant) {
+        if (tokenProvider == null) {
+            return CompletableFuture.completedFuture(httpRequest);
+        }
+        return tokenProvider.token(participant).thenApply(token -> HttpRequest.newBuilder(httpRequest, (name, value) -> true)
+                .header("Authorization", "Bearer " + token.value())
+                .build());
+    }
+
+    /**
+     * @return ИНН участника, от имени которого отправляется документ: participant_inn, иначе owner_inn,
+     * либо пустая строка.
+     */
+    static String participantOf(CreateGoodsDocumentRequest request) {
+        if (request.participantInn() != null) {
+            return request.participantInn();
+        }
+        return request.ownerInn() != null ? request.ownerInn() : "";
+    }
+
+    /**
+     * Ограничивает тайм-аут запроса остатком бюджета. Срок проверен при резервировании разрешения,
+     * поэтому полученное разрешение используется с любым оставшимся бюджетом, а не выбрасывается.
+     */
+    private HttpRequest withDeadline(HttpRequest httpRequest, long deadlineNanos) {
+        if (deadlineNanos == NO_DEADLINE) {
+            return httpRequest;
+        }
+        long remainingNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), remainingNanos(deadlineNanos));
+        return HttpRequest.newBuilder(httpRequest, (name, value) -> true)
+                .timeout(Duration.ofNanos(Math.min(requestTimeout.toNanos(), remainingNanos)))
+                .build();
+    }
 
-        // Очистка старых запросов
-        requestTimes.removeIf(time -> time < startWindow);
+    private static long remainingNanos(long deadlineNanos) {
+        return deadlineNanos == NO_DEADLINE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+    }
 
-        // Блокировка при достижении лимита запросов
-        while (requestTimes.size() >= requestLimit) {
-            TimeUnit.MILLISECONDS.sleep(100); // Установка времени сна
-            requestTimes.removeIf(time -> time < startWindow); // Повторная проверка и очистка старых запросов
+    /**
+     * Future, завершающийся через nanos в потоке executor.
+     * Продолжения нельзя выполнять в потоке таймера: он один на JVM и обслуживает все ожидания CompletableFuture.
+     * Если executor к этому моменту закрыт, future завершается {@link CrptApiException}: таймер CompletableFuture
+     * молча отбрасывает отклоненную задачу, и ожидающий вызов иначе не завершился бы никогда.
+     */
+    private static CompletableFuture<Void> delay(long nanos, Executor executor) {
+        if (nanos <= 0) {
+            return CompletableFuture.completedFuture(null);
         }
+        CompletableFuture<Void> elapsed = new CompletableFuture<>();
+        // Пустая задача на таймере CompletableFuture: поток не занят до окончания ожидания
+        Executor timer = CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS, task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                elapsed.completeExceptionally(new CrptApiException("CrptApi is closed", e));
+            }
+        });
+        timer.execute(() -> elapsed.complete(null));
+        return elapsed;
+    }
 
-        // JSON сериализация
-        String documentJson;
+    private static <T> T await(CompletableFuture<T> future) throws InterruptedException {
         try {
-            documentJson = objectMapper.writeValueAsString(request);
-        } catch (Exception e) {
-            e.printStackTrace();
+            return future.get();
+        } catch (InterruptedException e) {
+            // Отмена удается, только пока запрос не отправлен; иначе вызывающий получает результат отправки
+            if (future.cancel(true)) {
+                throw e;
+            }
+            return awaitSent(future, e);
+        } catch (ExecutionException e) {
+            throw asApiException(e.getCause());
+        }
+    }
+
+    /**
+     * Дожидается ответа на уже отправленный запрос, восстанавливая флаг прерывания.
+     */
+    private static <T> T awaitSent(CompletableFuture<T> future, InterruptedException interrupt)
+            throws InterruptedException {
+        while (true) {
+            try {
+                T result = future.get();
+                Thread.currentThread().interrupt();
+                return result;
+            } catch (InterruptedException ignored) {
+                // Ответ на отправленный запрос дожидается и при повторном прерывании
+            } catch (CancellationException e) {
+                // Попытка не удалась, и отложенная отмена сработала перед повтором: документ не создан
+                throw interrupt;
+            } catch (ExecutionException e) {
+                Thread.currentThread().interrupt();
+                throw asApiException(e.getCause());
+            }
+        }
+    }
+
+    private void notifyListener(CreateGoodsDocumentRequest request, DocumentResponse result, Throwable failure) {
+        if (listener == DocumentListener.NONE) {
             return;
         }
+        // Слушатель вызывается в фоновом потоке, чтобы его ввод-вывод не задерживал вызывающего
+        executor.execute(() -> {
+            if (failure == null) {
+                listener.onSuccess(request, result);
+            } else {
+                listener.onFailure(request, unwrap(failure));
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static CrptApiException asApiException(Throwable failure) {
+        Throwable cause = unwrap(failure);
+        return cause instanceof CrptApiException apiException
+                ? apiException
+                : new CrptApiException("Failed to send document", cause);
+    }
+
+    /**
+     * Готовит тело запроса: подписывает документ в пуле подписи, если он включен, иначе сериализует
+     * в serializer, либо в вызывающем потоке, если serializer равен null.
+     */
+    private CompletableFuture<SerializedBody> prepare(CreateGoodsDocumentRequest request, Executor serializer) {
+        if (signer != null) {
+            return CompletableFuture.supplyAsync(() -> signedBody(request.docType(), toJson(request)), signerPool);
+        }
+        if (serializer == null) {
+            return CompletableFuture.completedFuture(request).thenApply(this::serialize);
+        }
+        return CompletableFuture.supplyAsync(() -> serialize(request), serializer);
+    }
+
+    private static byte[] toJson(CreateGoodsDocumentRequest request) {
+        try {
+            return documentWriter.writeValueAsBytes(request);
+        } catch (JsonProcessingException e) {
+            throw new CrptApiException("Failed to serialize document", e);
+        }
+    }
+
+    /**
+     * Формирует тело с подписанным документом. Подписываемый документ нужен целиком,
+     * поэтому потоковая сериализация крупных документов в этом режиме не применяется.
+     */
+    private SerializedBody signedBody(String type, byte[] json) {
+        byte[] signature;
+        try {
+            signature = signer.sign(json);
+        } catch (GeneralSecurityException e) {
+            throw new CrptApiException("Failed to sign document", e);
+        }
+        Base64.Encoder base64 = Base64.getEncoder();
+        SignedDocument document = new SignedDocument(
+                "MANUAL", base64.encodeToString(json), base64.encodeToString(signature), type);
+        try {
+            // Подпись может быть недетерминированной, поэтому одинаковые запросы определяются по документу
+            return new SerializedBody(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(document)),
+                    coalescing ? contentHash(json) : null);
+        } catch (JsonProcessingException e) {
+            throw new CrptApiException("Failed to serialize document", e);
+        }
+    }
+
+    /**
+     * Тело запроса с подписанным документом.
+     *
+     * @param documentFormat  Формат документа.
+     * @param productDocument JSON документа в base64.
+     * @param signature       Открепленная подпись документа в base64.
+     * @param type            Тип документа.
+     */
+    private record SignedDocument(
+            @JsonProperty("document_format") String documentFormat,
+            @JsonProperty("product_document") String productDocument,
+            @JsonProperty("signature") String signature,
+            @JsonProperty("type") String type) {
+    }
+
+    private SerializedBody serialize(CreateGoodsDocumentRequest request) {
+        // Крупные документы передаются потоком, не материализуясь в памяти целиком
+        if (request.productCount() >= streamingThreshold) {
+            return new SerializedBody(new StreamingJsonPublisher(request, executor), null);
+        }
+        // Сериализация сразу в UTF-8 байты, без промежуточной строки
+        return serializedBody(toJson(request));
+    }
+
+    private SerializedBody serializedBody(byte[] json) {
+        String contentHash = coalescing ? contentHash(json) : null;
+        return new SerializedBody(HttpRequest.BodyPublishers.ofByteArray(json), contentHash);
+    }
+
+    private static String contentHash(byte[] json) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(json));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 
-        // Выполнение HTTP POST запроса
-        HttpRequest httpRequest = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL))
+    private HttpRequest newHttpRequest(HttpRequest.BodyPublisher body) {
+        return HttpRequest.newBuilder()
+                .uri(apiUri)
                 .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(documentJson))
+                .timeout(requestTimeout)
+                .POST(body)
                 .build();
+    }
 
-        try {
-            HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Response status code: " + response.statusCode());
-            System.out.println("Response body: " + response.body());
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            requestTimes.offer(System.nanoTime());
+    /**
+     * Сериализованное тело запроса.
+     *
+     * @param publisher   Источник тела для HttpClient.
+     * @param contentHash SHA-256 тела для объединения одинаковых запросов, либо null.
+     */
+    private record SerializedBody(HttpRequest.BodyPublisher publisher, String contentHash) {
+    }
+
+    /**
+     * Отмена отправки, общая для вызывающих, которые присоединились к ней через дедупликацию или объединение тел.
+     * Отправка отменяется, когда от нее отказались все вызывающие, и только между сетевыми попытками:
+     * отказ во время попытки откладывается до ее завершения.
+     */
+    static final class Cancellation {
+        private static final int SENDING = 1 << 30;
+        private static final int CANCELLED = 1 << 29;
+        private static final int LINKED = 1 << 28;
+        private static final int INTEREST = LINKED - 1;
+
+        // Число заинтересованных вызывающих и флаги SENDING, CANCELLED, LINKED
+        private final AtomicInteger state = new AtomicInteger(1);
+        // Отмена текущего этапа: подготовки тела, ожидания разрешения или паузы перед повтором
+        private final AtomicReference<Runnable> stage = new AtomicReference<>();
+        // Отправка, к которой присоединился вызов; после установки LINKED все отказы передаются ей
+        private volatile Cancellation upstream;
+        // Хотя бы одна сетевая попытка могла быть обработана API
+        private volatile boolean reached;
+
+        /**
+         * Присоединяет вызывающего к отправке.
+         *
+         * @return false, если отправка уже отменена.
+         */
+        boolean retain() {
+            while (true) {
+                int current = state.get();
+                if ((current & LINKED) != 0) {
+                    return upstream.retain();
+                }
+                if ((current & CANCELLED) != 0) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Отказ вызывающего от отправки; каждый вызывающий отказывается не более одного раза.
+         *
+         * @return false, если в этот момент выполняется сетевая попытка и отмена отложена до ее завершения.
+         */
+        boolean release() {
+            while (true) {
+                int current = state.get();
+                if ((current & LINKED) != 0) {
+                    return upstream.release();
+                }
+                boolean sending = (current & SENDING) != 0;
+                int next = current - 1;
+                boolean cancel = !sending && (next & INTEREST) == 0;
+                if (cancel) {
+                    next |= CANCELLED;
+                }
+                if (state.compareAndSet(current, next)) {
+                    if (cancel) {
+                        cancelStage();
+                    }
+                    return !sending;
+                }
+            }
+        }
+
+        /**
+         * Отмечает начало сетевой попытки.
+         *
+         * @return false, если отправка отменена и запрос выполнять не нужно.
+         */
+        boolean beginSending() {
+            while (true) {
+                int current = state.get();
+                if ((current & CANCELLED) != 0) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current | SENDING)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Отмечает завершение сетевой попытки и применяет отказы, отложенные на время попытки.
+         */
+        void endSending() {
+            while (true) {
+                int current = state.get();
+                int next = current & ~SENDING;
+                boolean cancel = (next & INTEREST) == 0;
+                if (cancel) {
+                    next |= CANCELLED;
+                }
+                if (state.compareAndSet(current, next)) {
+                    if (cancel) {
+                        cancelStage();
+                    }
+                    return;
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            int current = state.get();
+            return (current & LINKED) != 0 ? upstream.isCancelled() : (current & CANCELLED) != 0;
+        }
+
+        /**
+         * Отмечает попытку, которую API мог обработать: запрос отправлен и не отклонен до обработки.
+         */
+        void markReached() {
+            reached = true;
+        }
+
+        /**
+         * @return false, если ни одна попытка отправки не могла создать документ.
+         */
+        boolean mayHaveReachedServer() {
+            return (state.get() & LINKED) != 0 ? upstream.mayHaveReachedServer() : reached;
+        }
+
+        /**
+         * Делает future текущим этапом: отмена отправки отменит его.
+         */
+        <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+            onCancel(() -> future.cancel(true));
+            return future;
+        }
+
+        /**
+         * Передает вызывающих этого вызова отправке, к которой он присоединился через {@link #retain}:
+         * один из них уже учтен в ней, остальные присоединяются, а если отказались все - отказ передается.
+         */
+        void link(Cancellation joined) {
+            upstream = joined;
+            int current = state.getAndUpdate(value -> value | LINKED);
+            int interest = current & INTEREST;
+            if (interest == 0) {
+                joined.release();
+            }
+            for (int i = 1; i < interest; i++) {
+                joined.retain();
+            }
+        }
+
+        private void onCancel(Runnable action) {
+            stage.set(action);
+            if (isCancelled() && stage.compareAndSet(action, null)) {
+                action.run();
+            }
+        }
+
+        private void cancelStage() {
+            Runnable action = stage.getAndSet(null);
+            if (action != null) {
+                action.run();
+            }
         }
     }
 
     /**
-     * Класс CreateGoodsDocumentRequest представляет данные для создания документа ввода в оборот товара, произведенного в РФ.
+     * Future, возвращаемый вызывающему: отмена передается отправке через {@link Cancellation}.
+     * Слушатель уведомляется самой отправкой, поэтому отмена future его не отключает.
      */
-    public static class CreateGoodsDocumentRequest {
-        private String description;
-        private String doc_id;
-        private String doc_status;
-        private String doc_type;
-        private boolean importRequest;
-        private String owner_inn;
-        private String participant_inn;
-        private String producer_inn;
-        private String production_date;
-        private String production_type;
-        private Product[] products;
-        private String reg_date;
-        private String reg_number;
+    private static final class CallFuture extends CompletableFuture<DocumentResponse> {
+        private final Cancellation cancellation;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        CallFuture(CompletableFuture<DocumentResponse> pipeline, Cancellation cancellation) {
+            this.cancellation = cancellation;
+            pipeline.whenComplete((response, failure) -> {
+                if (failure == null) {
+                    complete(response);
+                } else {
+                    completeExceptionally(unwrap(failure));
+                }
+            });
+        }
+
+        /**
+         * @return false, если запрос уже отправляется: тогда future завершится результатом отправки.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone() || !released.compareAndSet(false, true)) {
+                return false;
+            }
+            return cancellation.release() && super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * @return false, если документ заведомо не дошел до API и его можно отправить повторно.
+         */
+        boolean mayHaveReachedServer() {
+            return cancellation.mayHaveReachedServer();
+        }
     }
 
     /**
-     * Класс Product представляет данные о продукте для документа ввода в оборот товара, произведенного в РФ.
+     * Тело запроса, сериализуемое через JsonGenerator по частям во время отправки.
+     * Сериализация приостанавливается, пока HttpClient не запросит очередные части,
+     * поэтому память на документ ограничена MAX_BUFFERED_CHUNKS * CHUNK_SIZE независимо от числа товаров.
+     * Каждая подписка (например, повторная отправка) сериализует документ заново.
      */
-    public static class Product {
-        private String certificate_document;
-        private String certificate_document_date;
-        private String certificate_document_number;
-        private String owner_inn;
-        private String producer_inn;
-        private String production_date;
-        private String tnved_code;
-        private String uit_code;
-        private String uitu_code;
+    static final class StreamingJsonPublisher implements HttpRequest.BodyPublisher {
+        static final int CHUNK_SIZE = 64 * 1024;
+        static final int MAX_BUFFERED_CHUNKS = 4;
+
+        private final CreateGoodsDocumentRequest request;
+        private final ExecutorService executor;
+        private final IntConsumer lagObserver;
+
+        StreamingJsonPublisher(CreateGoodsDocumentRequest request, ExecutorService executor) {
+            this(request, executor, lag -> {
+            });
+        }
+
+        /**
+         * @param lagObserver Получает после каждой части число частей, переданных, но еще не полученных подписчиком;
+         *                    в тестах позволяет проверить ограничение памяти.
+         */
+        StreamingJsonPublisher(CreateGoodsDocumentRequest request, ExecutorService executor, IntConsumer lagObserver) {
+            this.request = request;
+            this.executor = executor;
+            this.lagObserver = lagObserver;
+        }
+
+        @Override
+        public long contentLength() {
+            // Длина заранее неизвестна: используется chunked transfer encoding
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            // Кроме буфера издателя, одна часть обрабатывается подписчиком и одна заполняется генератором
+            SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>(executor, MAX_BUFFERED_CHUNKS - 2);
+            publisher.subscribe(subscriber);
+            executor.execute(() -> {
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(new ChunkOutputStream(publisher, lagObserver))) {
+                    documentWriter.writeValue(generator, request);
+                } catch (IOException | RuntimeException e) {
+                    publisher.closeExceptionally(e);
+                    return;
+                }
+                publisher.close();
+            });
+        }
+    }
+
+    /**
+     * Поток, нарезающий вывод JsonGenerator на части фиксированного размера.
+     * Метод submit блокируется, пока подписчик не освободит место в буфере.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final SubmissionPublisher<ByteBuffer> publisher;
+        private final IntConsumer lagObserver;
+        private byte[] chunk = new byte[StreamingJsonPublisher.CHUNK_SIZE];
+        private int position;
+
+        ChunkOutputStream(SubmissionPublisher<ByteBuffer> publisher, IntConsumer lagObserver) {
+            this.publisher = publisher;
+            this.lagObserver = lagObserver;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position == chunk.length) {
+                emit();
+            }
+            chunk[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (position == chunk.length) {
+                    emit();
+                }
+                int count = Math.min(len, chunk.length - position);
+                System.arraycopy(b, off, chunk, position, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (position > 0) {
+                emit();
+            }
+        }
+
+        private void emit() throws IOException {
+            if (!publisher.hasSubscribers()) {
+                throw new IOException("Request body subscription was cancelled");
+            }
+            lagObserver.accept(publisher.submit(ByteBuffer.wrap(chunk, 0, position)));
+            chunk = new byte[StreamingJsonPublisher.CHUNK_SIZE];
+            position = 0;
+        }
+    }
+
+    /**
+     * Построитель CrptApi.
+     */
+    public static final class Builder {
+        private RateLimiter rateLimiter;
+        private boolean virtualThreads;
+        private DocumentListener listener = DocumentListener.NONE;
+        private int streamingThreshold = 1000;
+        private int maxInFlight = 64;
+        private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+        private CircuitBreaker circuitBreaker;
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        private Duration requestTimeout = Duration.ofSeconds(30);
+        private Path outboxPath;
+        private int outboxCapacity;
+        private Duration dedupTtl;
+        private Path dedupStore;
+        private boolean coalescing;
+        private PriorityMode priorityMode;
+        private int maxQueuedPermits = Integer.MAX_VALUE;
+        private TokenSource tokenSource;
+        private DocumentSigner signer;
+        private int signerParallelism;
+        private Duration tokenRefreshAhead;
+        private Duration maxPermitWait;
+        private URI apiUri = URI.create(API_URL);
+
+        private Builder() {
+        }
+
+        /**
+         * Задает адрес метода создания документа вместо адреса API Честного знака, например локального сервера в тестах.
+         */
+        Builder apiUri(URI apiUri) {
+            this.apiUri = apiUri;
+            return this;
+        }
+
+        /**
+         * Задает ограничение requestLimit запросов за одну единицу timeUnit.
+         *
+         * @throws IllegalArgumentException если requestLimit меньше или равен нулю, либо неподдерживаемый TimeUnit.
+         */
+        public Builder requestLimit(TimeUnit timeUnit, int requestLimit) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+            }
+            this.rateLimiter = new SlidingWindowRateLimiter(requestLimit, windowOf(timeUnit));
+            return this;
+        }
+
+        /**
+         * Задает ограничение requestLimit запросов за произвольное окно, например 15 секунд.
+         */
+        public Builder requestLimit(int requestLimit, Duration window) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+            }
+            this.rateLimiter = new SlidingWindowRateLimiter(requestLimit, requirePositive(window, "window"));
+            return this;
+        }
+
+        /**
+         * Задает несколько окон, соблюдаемых одновременно, например 10 в секунду и 300 в минуту.
+         *
+         * @see MultiWindowRateLimiter
+         */
+        public Builder requestLimits(MultiWindowRateLimiter.Window... windows) {
+            this.rateLimiter = new MultiWindowRateLimiter(windows);
+            return this;
+        }
+
+        /**
+         * Задает произвольный ограничитель частоты запросов.
+         */
+        public Builder rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Включает режим виртуальных потоков для HttpClient и {@link CrptApi#submit}.
+         * Ограничители не удерживают мониторы во время ожидания, поэтому вызов
+         * {@link CrptApi#createIntroduceGoodsDocument} из виртуального потока не закрепляет поток-носитель;
+         * это проверяется тестом по событиям JFR jdk.VirtualThreadPinned, в том числе для отправки
+         * через {@link CrptApi#submit}.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Задает слушателя результатов отправки документов.
+         */
+        public Builder listener(DocumentListener listener) {
+            this.listener = listener == null ? DocumentListener.NONE : listener;
+            return this;
+        }
+
+        /**
+         * Задает число товаров, начиная с которого документ передается потоком без полной сериализации в память.
+         */
+        public Builder streamingThreshold(int productCount) {
+            if (productCount < 0) {
+                throw new IllegalArgumentException("Invalid streamingThreshold, must not be negative");
+            }
+            this.streamingThreshold = productCount;
+            return this;
+        }
+
+        /**
+         * Задает максимальное число документов пакета, одновременно находящихся в обработке.
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("Invalid maxInFlight, must be a positive number");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Задает политику повторных попыток; {@link RetryPolicy#NONE} отключает повторы.
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy == null ? RetryPolicy.NONE : retryPolicy;
+            return this;
+        }
+
+        /**
+         * Включает размыкатель цепи вокруг HTTP-запроса; по умолчанию размыкатель не используется.
+         */
+        public Builder circuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Задает таймаут установки соединения; по умолчанию 10 секунд.
+         */
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = requirePositive(connectTimeout, "connectTimeout");
+            return this;
+        }
+
+        /**
+         * Включает подпись документов: API получает product_document в base64 и открепленную подпись signature.
+         * Документы подписываются пулом из числа потоков по числу процессоров до получения разрешения
+         * ограничителя, поэтому подпись выполняется параллельно с ожиданием квоты.
+         */
+        public Builder signer(DocumentSigner signer) {
+            return signer(signer, Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Включает подпись документов пулом из parallelism потоков.
+         *
+         * @see #signer(DocumentSigner)
+         */
+        public Builder signer(DocumentSigner signer, int parallelism) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("Invalid parallelism, must be a positive number");
+            }
+            this.signer = signer;
+            this.signerParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Включает заголовок Authorization: Bearer с токенами из source.
+         * Токены кэшируются по participant_inn (иначе owner_inn) документа и обновляются в фоне
+         * за 5 минут до истечения.
+         */
+        public Builder authentication(TokenSource source) {
+            return authentication(source, Duration.ofMinutes(5));
+        }
+
+        /**
+         * Включает заголовок Authorization: Bearer с токенами из source, обновляемыми за refreshAhead до истечения.
+         */
+        public Builder authentication(TokenSource source, Duration refreshAhead) {
+            this.tokenSource = source;
+            this.tokenRefreshAhead = requirePositive(refreshAhead, "refreshAhead");
+            return this;
+        }
+
+        /**
+         * Ограничивает число попыток, одновременно ожидающих разрешения ограничителя.
+         * Сверх лимита вызов сразу завершается {@link AdmissionRejectedException}; по умолчанию не ограничено.
+         */
+        public Builder maxQueuedPermits(int maxQueuedPermits) {
+            if (maxQueuedPermits <= 0) {
+                throw new IllegalArgumentException("Invalid maxQueuedPermits, must be a positive number");
+            }
+            this.maxQueuedPermits = maxQueuedPermits;
+            return this;
+        }
+
+        /**
+         * Ограничивает ожидание разрешения одной попыткой. Без очереди приоритетов попытка, чье разрешение
+         * наступит позже, отклоняется сразу; в очереди - по истечении maxPermitWait. В обоих случаях
+         * вызов завершается {@link AdmissionRejectedException}, а разрешение не расходуется.
+         */
+        public Builder maxPermitWait(Duration maxPermitWait) {
+            this.maxPermitWait = requirePositive(maxPermitWait, "maxPermitWait");
+            return this;
+        }
+
+        /**
+         * Задает таймаут ожидания ответа на одну попытку; по умолчанию 30 секунд.
+         */
+        public Builder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requirePositive(requestTimeout, "requestTimeout");
+            return this;
+        }
+
+        /**
+         * Включает журнал исходящих документов для {@link CrptApi#enqueueIntroduceGoodsDocument}.
+         *
+         * @param journal       Файл журнала; создается, если не существует.
+         * @param capacityBytes Размер файла журнала.
+         */
+        public Builder outbox(Path journal, int capacityBytes) {
+            if (capacityBytes <= Outbox.ENTRY_HEADER_SIZE) {
+                throw new IllegalArgumentException("Invalid outbox capacity, must be a positive number of bytes");
+            }
+            this.outboxPath = journal;
+            this.outboxCapacity = capacityBytes;
+            return this;
+        }
+
+        /**
+         * Включает журнал исходящих документов размером 64 МБ.
+         */
+        public Builder outbox(Path journal) {
+            return outbox(journal, 64 * 1024 * 1024);
+        }
+
+        /**
+         * Включает подавление повторной отправки документов с тем же doc_id в течение ttl.
+         * Повторный вызов получает результат первого; неудачная отправка из индекса удаляется.
+         *
+         * @param ttl   Время хранения doc_id в индексе.
+         * @param store Файл для сохранения индекса между перезапусками, либо null.
+         */
+        public Builder deduplication(Duration ttl, Path store) {
+            this.dedupTtl = requirePositive(ttl, "deduplication ttl");
+            this.dedupStore = store;
+            return this;
+        }
+
+        /**
+         * Включает подавление повторов по doc_id только в памяти.
+         */
+        public Builder deduplication(Duration ttl) {
+            return deduplication(ttl, null);
+        }
+
+        /**
+         * Включает объединение одновременных отправок побайтно одинаковых документов:
+         * они разделяют один HTTP-запрос, одно разрешение ограничителя и один результат.
+         * Документы, передаваемые потоком, не объединяются.
+         */
+        public Builder coalesceIdenticalDocuments(boolean coalescing) {
+            this.coalescing = coalescing;
+            return this;
+        }
+
+        /**
+         * Включает очередь разрешений с приоритетами {@link Priority}.
+         * Разрешение резервируется только в момент, когда ограничитель готов его выдать, и достается
+         * ожидающему из очереди согласно mode, поэтому срочные документы не ждут за уже зарезервированной
+         * пакетной загрузкой.
+         */
+        public Builder priorityScheduling(PriorityMode mode) {
+            this.priorityMode = mode;
+            return this;
+        }
+
+        /**
+         * Включает справедливое ожидание разрешений в строгом порядке FIFO.
+         * Эквивалентно {@code priorityScheduling(PriorityMode.FIFO)}.
+         */
+        public Builder fairScheduling() {
+            return priorityScheduling(PriorityMode.FIFO);
+        }
+
+        private static Duration requirePositive(Duration duration, String name) {
+            if (duration == null || duration.isNegative() || duration.isZero()) {
+                throw new IllegalArgumentException("Invalid " + name + ", must be a positive duration");
+            }
+            return duration;
+        }
+
+        public CrptApi build() {
+            return new CrptApi(this);
+        }
+    }
+
+    /**
+     * Фасад для работы от имени нескольких участников оборота.
+     * Для каждого ИНН создается отдельный CrptApi со своим ограничителем и настройками HTTP (например, токеном),
+     * поэтому интенсивная отправка одного участника не расходует квоту остальных. Документ направляется
+     * экземпляру participant_inn, а если он не задан - owner_inn.
+     * Экземпляр участника, не использовавшийся дольше idleTimeout и не имеющий незавершенных запросов,
+     * закрывается и удаляется фоновой проверкой раз в idleTimeout; при следующем обращении он создается заново.
+     */
+    public static final class TenantRouter implements AutoCloseable {
+        private final Function<String, Builder> configurer;
+        private final long idleTimeoutNanos;
+        // ConcurrentHashMap блокирует только корзину ключа, поэтому участники не мешают друг другу
+        private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+        // Закрытие экземпляров блокируется, поэтому проверка выполняется в отдельном виртуальном потоке
+        private final Executor sweeper = task -> Thread.ofVirtual().name("crpt-tenant-sweeper").start(task);
+        private volatile boolean closed;
+
+        /**
+         * Экземпляр участника; поля изменяются только внутри compute по его ключу либо до его публикации.
+         */
+        private static final class Tenant {
+            final CrptApi api;
+            int inFlight;
+            long lastUsedNanos;
+
+            Tenant(CrptApi api) {
+                this.api = api;
+            }
+        }
+
+        /**
+         * @param configurer  Возвращает настройки CrptApi для ИНН участника.
+         * @param idleTimeout Время простоя, после которого экземпляр участника закрывается.
+         */
+        public TenantRouter(Function<String, Builder> configurer, Duration idleTimeout) {
+            this.configurer = configurer;
+            this.idleTimeoutNanos = Builder.requirePositive(idleTimeout, "idleTimeout").toNanos();
+            scheduleSweep();
+        }
+
+        /**
+         * Отправляет документ через экземпляр его участника.
+         *
+         * @throws IllegalStateException если маршрутизатор закрыт.
+         * @see CrptApi#createIntroduceGoodsDocument(CreateGoodsDocumentRequest)
+         */
+        public DocumentResponse createIntroduceGoodsDocument(CreateGoodsDocumentRequest request)
+                throws InterruptedException {
+            String inn = tenantOf(request);
+            CrptApi api = checkOut(inn);
+            try {
+                return api.createIntroduceGoodsDocument(request);
+            } finally {
+                checkIn(inn);
+            }
+        }
+
+        /**
+         * Асинхронно отправляет документ через экземпляр его участника.
+         *
+         * @throws IllegalStateException если маршрутизатор закрыт.
+         * @see CrptApi#createIntroduceGoodsDocumentAsync(CreateGoodsDocumentRequest)
+         */
+        public CompletableFuture<DocumentResponse> createIntroduceGoodsDocumentAsync(CreateGoodsDocumentRequest request) {
+            String inn = tenantOf(request);
+            CrptApi api = checkOut(inn);
+            try {
+                // Вызывающему возвращается future экземпляра, чтобы отмена доходила до отправки
+                CompletableFuture<DocumentResponse> result = api.createIntroduceGoodsDocumentAsync(request);
+                result.whenComplete((response, failure) -> checkIn(inn));
+                return result;
+            } catch (RuntimeException e) {
+                checkIn(inn);
+                throw e;
+            }
+        }
+
+        /**
+         * @return Количество открытых экземпляров участников.
+         */
+        public int tenantCount() {
+            return tenants.size();
+        }
+
+        private static String tenantOf(CreateGoodsDocumentRequest request) {
+            String inn = participantOf(request);
+            if (inn.isEmpty()) {
+                throw new IllegalArgumentException("Document has neither participant_inn nor owner_inn");
+            }
+            return inn;
+        }
+
+        private CrptApi checkOut(String inn) {
+            if (closed) {
+                throw new IllegalStateException("TenantRouter is closed");
+            }
+            long now = System.nanoTime();
+            Tenant tenant;
+            while (true) {
+                tenant = tenants.computeIfPresent(inn, (key, existing) -> {
+                    existing.inFlight++;
+                    existing.lastUsedNanos = now;
+                    return existing;
+                });
+                if (tenant != null) {
+                    break;
+                }
+                // Создание CrptApi открывает HttpClient и файлы, поэтому выполняется вне compute,
+                // чтобы не блокировать корзину вместе с соседними ИНН. Экземпляр, проигравший гонку, закрывается
+                Tenant created = new Tenant(configurer.apply(inn).build());
+                created.inFlight = 1;
+                created.lastUsedNanos = now;
+                if (tenants.putIfAbsent(inn, created) == null) {
+                    tenant = created;
+                    break;
+                }
+                created.api.close();
+            }
+            // close() мог перебрать экземпляры до того, как этот был добавлен
+            if (closed) {
+                if (tenants.remove(inn, tenant)) {
+                    tenant.api.close();
+                }
+                throw new IllegalStateException("TenantRouter is closed");
+            }
+            return tenant.api;
+        }
+
+        private void checkIn(String inn) {
+            long now = System.nanoTime();
+            tenants.computeIfPresent(inn, (key, tenant) -> {
+                tenant.inFlight--;
+                tenant.lastUsedNanos = now;
+                return tenant;
+            });
+        }
+
+        /**
+         * Проверка выполняется по таймеру, а не при обращениях: иначе после прекращения отправки
+         * простаивающие экземпляры держали бы потоки и соединения до закрытия маршрутизатора.
+         */
+        private void scheduleSweep() {
+            delay(idleTimeoutNanos, sweeper).thenRun(() -> {
+                if (!closed) {
+                    sweep(System.nanoTime());
+                    scheduleSweep();
+                }
+            });
+        }
+
+        private void sweep(long now) {
+            List<CrptApi> evicted = new ArrayList<>();
+            for (String inn : tenants.keySet()) {
+                tenants.computeIfPresent(inn, (key, tenant) -> {
+                    if (tenant.inFlight == 0 && now - tenant.lastUsedNanos >= idleTimeoutNanos) {
+                        evicted.add(tenant.api);
+                        return null;
+                    }
+                    return tenant;
+                });
+            }
+            // Закрытие выполняется вне compute: у простаивающего экземпляра оно не ждет запросов
+            evicted.forEach(CrptApi::close);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (String inn : tenants.keySet()) {
+                Tenant tenant = tenants.remove(inn);
+                if (tenant != null) {
+                    tenant.api.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Журнал исходящих документов в отображаемом в память файле (write-ahead outbox).
+     * Записи добавляются только в конец: [длина: int][состояние: byte][JSON документа].
+     * После ответа API состояние записи меняется на ACKED на месте. Нулевая длина отмечает конец журнала.
+     * Когда все записи подтверждены, журнал начинается заново с начала файла; если новой записи не хватает
+     * места, неподтвержденные записи переписываются в новый файл, который атомарно заменяет журнал,
+     * освобождая место подтвержденных. Записи адресуются порядковым номером, так как при сжатии они смещаются.
+     */
+    static final class Outbox implements AutoCloseable {
+        static final int ENTRY_HEADER_SIZE = Integer.BYTES + 1;
+        private static final byte PENDING = 1;
+        private static final byte ACKED = 2;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Path path;
+        private final int capacity;
+        // Смещения неподтвержденных записей по порядковым номерам, в порядке добавления
+        private final TreeMap<Long, Integer> positions = new TreeMap<>();
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int position;
+        private int liveBytes;
+        private long nextSequence;
+        private boolean closed;
+
+        /**
+         * Запись журнала.
+         *
+         * @param sequence Порядковый номер записи.
+         * @param length   Длина документа в байтах.
+         */
+        record Entry(long sequence, int length) {
+        }
+
+        Outbox(Path path, int capacity) throws IOException {
+            this.path = path;
+            this.capacity = capacity;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /**
+         * Находит неподтвержденные записи и устанавливает позицию записи в конец журнала.
+         */
+        List<Entry> recover() {
+            lock.lock();
+            try {
+                List<Entry> entries = new ArrayList<>();
+                int offset = 0;
+                while (offset + ENTRY_HEADER_SIZE <= capacity) {
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > capacity) {
+                        break;
+                    }
+                    if (buffer.get(offset + Integer.BYTES) == PENDING) {
+                        entries.add(track(offset, length));
+                    }
+                    offset += ENTRY_HEADER_SIZE + length;
+                }
+                position = offset;
+                return entries;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Entry append(byte[] payload) {
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Outbox is closed");
+                }
+                if (positions.isEmpty() && position > 0) {
+                    // Все записи подтверждены: журнал начинается заново
+                    buffer.putInt(0, 0);
+                    buffer.force(0, Integer.BYTES);
+                    position = 0;
+                }
+                int size = ENTRY_HEADER_SIZE + payload.length;
+                if (position + size > capacity && liveBytes < position) {
+                    compact();
+                }
+                int offset = position;
+                int end = offset + size;
+                if (end > capacity) {
+                    throw new CrptApiException("Outbox journal is full");
+                }
+                // Длина записывается последней: до этого запись не видна при восстановлении
+                if (end + Integer.BYTES <= capacity) {
+                    buffer.putInt(end, 0);
+                }
+                buffer.put(offset + ENTRY_HEADER_SIZE, payload);
+                buffer.put(offset + Integer.BYTES, PENDING);
+                buffer.force(offset, end - offset + (end + Integer.BYTES <= capacity ? Integer.BYTES : 0));
+                buffer.putInt(offset, payload.length);
+                buffer.force(offset, Integer.BYTES);
+                position = end;
+                return track(offset, payload.length);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        byte[] read(Entry entry) {
+            byte[] payload = new byte[entry.length()];
+            lock.lock();
+            try {
+                Integer offset = positions.get(entry.sequence());
+                if (offset == null) {
+                    throw new IllegalStateException("Outbox entry is already acknowledged");
+                }
+                buffer.get(offset + ENTRY_HEADER_SIZE, payload);
+            } finally {
+                lock.unlock();
+            }
+            return payload;
+        }
+
+        void ack(Entry entry) {
+            lock.lock();
+            try {
+                Integer offset = positions.remove(entry.sequence());
+                if (closed || offset == null) {
+                    return;
+                }
+                int stateOffset = offset + Integer.BYTES;
+                buffer.put(stateOffset, ACKED);
+                buffer.force(stateOffset, 1);
+                liveBytes -= ENTRY_HEADER_SIZE + entry.length();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Entry track(int offset, int length) {
+            Entry entry = new Entry(nextSequence++, length);
+            positions.put(entry.sequence(), offset);
+            liveBytes += ENTRY_HEADER_SIZE + length;
+            return entry;
+        }
+
+        /**
+         * Переписывает неподтвержденные записи подряд в новый файл и атомарно заменяет им журнал.
+         * При сбое до замены остается прежний журнал, в котором подтверждения уже записаны.
+         */
+        private void compact() {
+            Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+            FileChannel newChannel = null;
+            try {
+                newChannel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                int offset = 0;
+                for (Map.Entry<Long, Integer> live : positions.entrySet()) {
+                    int length = buffer.getInt(live.getValue());
+                    newBuffer.put(offset, buffer, live.getValue(), ENTRY_HEADER_SIZE + length);
+                    live.setValue(offset);
+                    offset += ENTRY_HEADER_SIZE + length;
+                }
+                if (offset + Integer.BYTES <= capacity) {
+                    newBuffer.putInt(offset, 0);
+                }
+                newBuffer.force();
+                Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                channel.close();
+                channel = newChannel;
+                buffer = newBuffer;
+                position = offset;
+            } catch (IOException e) {
+                closeQuietly(newChannel);
+                throw new CrptApiException("Failed to compact outbox journal", e);
+            }
+        }
+
+        private static void closeQuietly(FileChannel channel) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Исходная ошибка важнее
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    buffer.force();
+                    channel.close();
+                }
+            } catch (IOException e) {
+                throw new CrptApiException("Failed to close outbox journal", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Индекс недавно отправленных doc_id для подавления повторов.
+     * Хранится в памяти; успешные результаты дополнительно дописываются построчно в JSON-файл,
+     * который при запуске загружается. Устаревшие записи удаляются из памяти при обращении и периодической
+     * очисткой раз в ttl; та же очистка переписывает файл без устаревших строк, поэтому он хранит
+     * не больше записей, чем отправлено за два ttl.
+     */
+    static final class DedupIndex implements AutoCloseable {
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private final long ttlMillis;
+        private final AtomicLong nextSweepMillis;
+        private final ReentrantLock storeLock = new ReentrantLock();
+        private final Path storePath;
+        // Файл дописывается и переписывается под storeLock
+        private BufferedWriter store;
+        private long storedLines;
+        // После ошибки записи файл не используется: частично записанная строка испортила бы следующие
+        private volatile boolean storeFailed;
+
+        /**
+         * Запись индекса.
+         *
+         * @param result          Результат первой отправки, возможно еще не завершенный.
+         * @param expiresAtMillis Время устаревания записи.
+         * @param cancellation    Отмена первой отправки, либо null для записи, восстановленной из файла.
+         */
+        record Entry(CompletableFuture<DocumentResponse> result, long expiresAtMillis, Cancellation cancellation) {
+        }
+
+        /**
+         * Строка файла индекса.
+         */
+        record StoredResponse(@JsonProperty("doc_id") String docId,
+                              @JsonProperty("expires_at") long expiresAtMillis,
+                              @JsonProperty("status_code") int statusCode,
+                              @JsonProperty("document_id") String documentId,
+                              @JsonProperty("body") String body) {
+        }
+
+        DedupIndex(Duration ttl, Path storePath) throws IOException {
+            this.ttlMillis = ttl.toMillis();
+            long now = System.currentTimeMillis();
+            this.nextSweepMillis = new AtomicLong(now + ttlMillis);
+            this.storePath = storePath;
+            if (storePath != null) {
+                rewriteStore(now, true);
+            }
+        }
+
+        /**
+         * Регистрирует отправку doc_id.
+         *
+         * @return Новая запись с result, либо существующая запись предыдущей отправки.
+         */
+        Entry claim(String docId, CompletableFuture<DocumentResponse> result, Cancellation cancellation) {
+            long now = System.currentTimeMillis();
+            sweepIfDue(now);
+            Entry claimed = new Entry(result, now + ttlMillis, cancellation);
+            while (true) {
+                Entry existing = entries.putIfAbsent(docId, claimed);
+                if (existing == null) {
+                    return claimed;
+                }
+                if (existing.expiresAtMillis() > now) {
+                    return existing;
+                }
+                if (entries.replace(docId, existing, claimed)) {
+                    return claimed;
+                }
+            }
+        }
+
+        /**
+         * Сохраняет успешный результат, либо удаляет запись после неудачи, чтобы документ можно было отправить снова.
+         */
+        void complete(String docId, Entry entry, DocumentResponse response, Throwable failure) {
+            if (failure != null) {
+                abandon(docId, entry);
+                return;
+            }
+            if (storePath == null || storeFailed) {
+                return;
+            }
+            storeLock.lock();
+            try {
+                writeLine(new StoredResponse(docId, entry.expiresAtMillis(), response.statusCode(),
+                        response.documentId(), response.body()));
+                store.flush();
+            } catch (IOException e) {
+                // Индекс в памяти продолжает работать и без файла, но повторы перестанут подавляться после перезапуска
+                storeFailed = true;
+                logger.log(System.Logger.Level.WARNING,
+                        "Failed to persist deduplication entry, further entries are kept in memory only", e);
+            } finally {
+                storeLock.unlock();
+            }
+        }
+
+        /**
+         * Удаляет запись, чтобы doc_id можно было отправить снова.
+         */
+        void abandon(String docId, Entry entry) {
+            entries.remove(docId, entry);
+        }
+
+        private void writeLine(StoredResponse stored) throws IOException {
+            store.write(objectMapper.writeValueAsString(stored));
+            store.newLine();
+            storedLines++;
+        }
+
+        private void sweepIfDue(long now) {
+            long next = nextSweepMillis.get();
+            if (now >= next && nextSweepMillis.compareAndSet(next, now + ttlMillis)) {
+                entries.values().removeIf(entry -> entry.expiresAtMillis() <= now && entry.result().isDone());
+                if (storePath != null && !storeFailed) {
+                    storeLock.lock();
+                    try {
+                        if (!storeFailed && storedLines > 0) {
+                            rewriteStore(now, false);
+                        }
+                    } catch (IOException e) {
+                        storeFailed = true;
+                        logger.log(System.Logger.Level.WARNING,
+                                "Failed to compact deduplication store, further entries are kept in memory only", e);
+                    } finally {
+                        storeLock.unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Переписывает файл без устаревших строк. Файл читается построчно, а новый записывается рядом
+         * и атомарно заменяет прежний, поэтому сбой во время перезаписи не теряет сохраненные записи.
+         * Вызывается из конструктора либо под storeLock.
+         *
+         * @param load Загрузить ли живые записи в индекс (при запуске).
+         */
+        private void rewriteStore(long now, boolean load) throws IOException {
+            if (store != null) {
+                store.close();
+            }
+            Path compacted = storePath.resolveSibling(storePath.getFileName() + ".compact");
+            long lines = 0;
+            try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                if (Files.exists(storePath)) {
+                    try (BufferedReader in = Files.newBufferedReader(storePath, StandardCharsets.UTF_8)) {
+                        for (String line = in.readLine(); line != null; line = in.readLine()) {
+                            StoredResponse stored;
+                            try {
+                                stored = objectMapper.readValue(line, StoredResponse.class);
+                            } catch (JsonProcessingException ignored) {
+                                // Недописанная при сбое строка
+                                continue;
+                            }
+                            if (stored.expiresAtMillis() <= now) {
+                                continue;
+                            }
+                            if (load) {
+                                DocumentResponse response = new DocumentResponse(stored.statusCode(),
+                                        stored.documentId(), null, stored.body());
+                                entries.put(stored.docId(), new Entry(CompletableFuture.completedFuture(response),
+                                        stored.expiresAtMillis(), null));
+                            }
+                            out.write(line);
+                            out.newLine();
+                            lines++;
+                        }
+                    }
+                }
+            }
+            Files.move(compacted, storePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            store = Files.newBufferedWriter(storePath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            storedLines = lines;
+        }
+
+        @Override
+        public void close() {
+            if (storePath == null) {
+                return;
+            }
+            storeLock.lock();
+            try {
+                store.close();
+            } catch (IOException e) {
+                throw new CrptApiException("Failed to close deduplication store", e);
+            } finally {
+                storeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ответ API на запрос создания документа.
+     *
+     * @param statusCode   HTTP-код ответа.
+     * @param documentId   Идентификатор созданного документа, либо null при ошибке.
+     * @param errorMessage Сообщение об ошибке из ответа API, либо null.
+     * @param body         Исходное тело ответа.
+     */
+    public record DocumentResponse(int statusCode, String documentId, String errorMessage, String body)
+            implements Serializable {
+
+        /**
+         * Разбирает тело ответа API; тело не в формате JSON сохраняется только как body.
+         */
+        static DocumentResponse of(int statusCode, String body) {
+            String documentId = null;
+            String errorMessage = null;
+            try {
+                JsonNode node = objectMapper.readTree(body);
+                if (node != null) {
+                    documentId = node.path("value").textValue();
+                    errorMessage = node.path("error_message").textValue();
+                }
+            } catch (JsonProcessingException ignored) {
+                // Тело ответа не является JSON
+            }
+            return new DocumentResponse(statusCode, documentId, errorMessage, body);
+        }
+
+        /**
+         * @return true, если API ответило кодом 2xx.
+         */
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+    }
+
+    /**
+     * Политика повторных попыток отправки документа.
+     * Создание документа не идемпотентно, поэтому по умолчанию повторяются только попытки, которые заведомо
+     * не были обработаны API: ошибки установления соединения и ответы {@code 408, 429, 503}.
+     * Тайм-аут и обрыв после отправки запроса, а также ответы {@code 502, 504} не означают, что документ
+     * не создан; их повтор включается через {@link #retryingAmbiguousFailures()} и может создать дубликат.
+     * Пауза между попытками выбирается по схеме decorrelated jitter: случайно между baseDelay и утроенной
+     * предыдущей паузой, но не больше maxDelay. Заголовок {@code Retry-After} увеличивает паузу
+     * до указанного сервером времени.
+     *
+     * @param maxAttempts     Максимальное число попыток, включая первую.
+     * @param baseDelay       Минимальная пауза перед повторной попыткой.
+     * @param maxDelay        Максимальная пауза перед повторной попыткой.
+     * @param retryAmbiguous  Повторять ли сбои, после которых документ мог быть создан.
+     */
+    public record RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, boolean retryAmbiguous) {
+        public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO);
+        public static final RetryPolicy DEFAULT = new RetryPolicy(4, Duration.ofMillis(500), Duration.ofSeconds(30));
+
+        public RetryPolicy {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("Invalid maxAttempts, must be a positive number");
+            }
+            if (baseDelay.isNegative() || maxDelay.compareTo(baseDelay) < 0) {
+                throw new IllegalArgumentException("Invalid delays, must satisfy 0 <= baseDelay <= maxDelay");
+            }
+        }
+
+        /**
+         * Политика, повторяющая только сбои, после которых документ заведомо не создан.
+         */
+        public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+            this(maxAttempts, baseDelay, maxDelay, false);
+        }
+
+        /**
+         * @return Копия политики, повторяющая также тайм-ауты, обрывы после отправки и ответы 502, 504.
+         * Подходит, если повтор не создаст дубликат, например при уникальном doc_id, который API проверяет.
+         */
+        public RetryPolicy retryingAmbiguousFailures() {
+            return new RetryPolicy(maxAttempts, baseDelay, maxDelay, true);
+        }
+
+        boolean isRetryable(int statusCode) {
+            return switch (statusCode) {
+                case 408, 429, 503 -> true;
+                case 502, 504 -> retryAmbiguous;
+                default -> false;
+            };
+        }
+
+        boolean isRetryable(Throwable failure) {
+            return neverReachedServer(failure) || retryAmbiguous && failure instanceof IOException;
+        }
+
+        /**
+         * @return true, если запрос не дошел до API: соединение не было установлено.
+         */
+        static boolean neverReachedServer(Throwable failure) {
+            return failure instanceof ConnectException || failure instanceof HttpConnectTimeoutException;
+        }
+
+        /**
+         * @return true, если API отказалось обрабатывать запрос, не создавая документ.
+         */
+        static boolean isRefusedStatus(int statusCode) {
+            return statusCode == 408 || statusCode == 429 || statusCode == 503;
+        }
+
+        long nextDelayNanos(long previousDelayNanos) {
+            long base = baseDelay.toNanos();
+            long upper = Math.max(base, Math.min(maxDelay.toNanos(), previousDelayNanos * 3));
+            return upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1) : base;
+        }
+
+        /**
+         * @return Пауза из заголовка Retry-After (секунды или HTTP-дата), либо 0.
+         */
+        static long retryAfterNanos(HttpResponse<?> response) {
+            String value = response.headers().firstValue("Retry-After").map(String::trim).orElse(null);
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, Duration.between(ZonedDateTime.now(), date).toNanos());
+                } catch (DateTimeParseException ignored) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Размыкатель цепи (circuit breaker) для запросов к API.
+     * В состоянии CLOSED учитывает исходы последних windowSize запросов; ошибкой считаются сбои
+     * ввода-вывода и ответы 5xx. Когда доля ошибок достигает failureRateThreshold, размыкатель
+     * переходит в OPEN и в течение openDuration отклоняет запросы без обращения к сети.
+     * Затем в состоянии HALF_OPEN пропускает halfOpenCalls пробных запросов: если все они успешны,
+     * цепь замыкается, иначе снова размыкается.
+     */
+    public static final class CircuitBreaker {
+
+        public enum State {
+            CLOSED, OPEN, HALF_OPEN
+        }
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final double failureRateThreshold;
+        private final long openDurationNanos;
+        private final int halfOpenCalls;
+        // Кольцо исходов последних запросов: true - ошибка
+        private final boolean[] outcomes;
+
+        private volatile State state = State.CLOSED;
+        private long openedAtNanos;
+        private int position;
+        private int recorded;
+        private int failures;
+        private int halfOpenStarted;
+        private int halfOpenSucceeded;
+
+        /**
+         * @param windowSize           Число последних запросов, по которым считается доля ошибок.
+         * @param failureRateThreshold Доля ошибок от 0 до 1, при которой цепь размыкается.
+         * @param openDuration         Время, в течение которого запросы отклоняются.
+         * @param halfOpenCalls        Число пробных запросов в состоянии HALF_OPEN.
+         */
+        public CircuitBreaker(int windowSize, double failureRateThreshold, Duration openDuration, int halfOpenCalls) {
+            if (windowSize <= 0 || halfOpenCalls <= 0) {
+                throw new IllegalArgumentException("Invalid windowSize or halfOpenCalls, must be a positive number");
+            }
+            if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+                throw new IllegalArgumentException("Invalid failureRateThreshold, must be in (0, 1]");
+            }
+            this.failureRateThreshold = failureRateThreshold;
+            this.openDurationNanos = openDuration.toNanos();
+            this.halfOpenCalls = halfOpenCalls;
+            this.outcomes = new boolean[windowSize];
+        }
+
+        /**
+         * @return Текущее состояние размыкателя.
+         */
+        public State state() {
+            return state;
+        }
+
+        /**
+         * Проверяет, можно ли выполнить запрос. В состоянии CLOSED не берет блокировку.
+         *
+         * @return false, если цепь разомкнута и запрос нужно отклонить.
+         */
+        public boolean tryAcquire() {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            lock.lock();
+            try {
+                if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openDurationNanos) {
+                    state = State.HALF_OPEN;
+                    halfOpenStarted = 0;
+                    halfOpenSucceeded = 0;
+                }
+                if (state == State.HALF_OPEN && halfOpenStarted < halfOpenCalls) {
+                    halfOpenStarted++;
+                    return true;
+                }
+                return state == State.CLOSED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Возвращает пробный запрос, пропущенный {@link #tryAcquire}, но так и не выполненный.
+         */
+        public void release() {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (state == State.HALF_OPEN && halfOpenStarted > 0) {
+                    halfOpenStarted--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Учитывает исход запроса, пропущенного {@link #tryAcquire}.
+         */
+        public void record(boolean success) {
+            lock.lock();
+            try {
+                switch (state) {
+                    case CLOSED -> recordClosed(success);
+                    case HALF_OPEN -> {
+                        if (!success) {
+                            open();
+                        } else if (++halfOpenSucceeded >= halfOpenCalls) {
+                            close();
+                        }
+                    }
+                    case OPEN -> {
+                        // Ответ на запрос, начатый до размыкания, не меняет состояние
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void recordClosed(boolean success) {
+            if (recorded == outcomes.length) {
+                if (outcomes[position]) {
+                    failures--;
+                }
+            } else {
+                recorded++;
+            }
+            outcomes[position] = !success;
+            if (!success) {
+                failures++;
+            }
+            position = (position + 1) % outcomes.length;
+
+            if (recorded == outcomes.length && failures >= failureRateThreshold * outcomes.length) {
+                open();
+            }
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            Arrays.fill(outcomes, false);
+            position = 0;
+            recorded = 0;
+            failures = 0;
+        }
+    }
+
+    /**
+     * Подписывает документ открепленной подписью.
+     * Вызывается параллельно из пула подписи CrptApi, поэтому реализация должна быть потокобезопасной.
+     */
+    @FunctionalInterface
+    public interface DocumentSigner {
+        /**
+         * @param document JSON документа в UTF-8.
+         * @return Открепленная подпись документа.
+         * @throws GeneralSecurityException если документ не удалось подписать.
+         */
+        byte[] sign(byte[] document) throws GeneralSecurityException;
+    }
+
+    /**
+     * Эталонная подпись средствами JCA ({@link Signature}), например SHA256withECDSA.
+     * API принимает открепленную подпись CMS по ГОСТ, которую JDK не формирует; для нее нужен
+     * провайдер JCA с поддержкой ГОСТ и CMS, подключаемый собственной реализацией {@link DocumentSigner}.
+     */
+    public static final class JcaDocumentSigner implements DocumentSigner {
+        private final PrivateKey privateKey;
+        private final String algorithm;
+
+        /**
+         * @param privateKey Закрытый ключ подписанта.
+         * @param algorithm  Алгоритм подписи JCA, например SHA256withRSA.
+         */
+        public JcaDocumentSigner(PrivateKey privateKey, String algorithm) {
+            this.privateKey = privateKey;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public byte[] sign(byte[] document) throws GeneralSecurityException {
+            // Signature не потокобезопасен, поэтому создается на каждую подпись
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(privateKey);
+            signature.update(document);
+            return signature.sign();
+        }
+    }
+
+    /**
+     * Токен доступа к API.
+     *
+     * @param value     Значение для заголовка Authorization: Bearer.
+     * @param expiresAt Момент истечения токена.
+     */
+    public record AuthToken(String value, Instant expiresAt) {
+    }
+
+    /**
+     * Источник токенов доступа, например реализация схемы запрос-подпись-токен API.
+     * Вызывается только при первом обращении от имени участника и при фоновом обновлении токена.
+     */
+    @FunctionalInterface
+    public interface TokenSource {
+        /**
+         * Получает новый токен.
+         *
+         * @param participantInn ИНН участника, от имени которого отправляются документы; пустая строка,
+         *                       если документ его не содержит.
+         */
+        CompletableFuture<AuthToken> fetchToken(String participantInn);
+    }
+
+    /**
+     * Кэш токенов по участникам с упреждающим фоновым обновлением.
+     * Токен обновляется за refreshAhead до истечения, поэтому запрос получает его из кэша без ожидания.
+     * Одновременные обновления токена одного участника объединяются в одно обращение к {@link TokenSource}.
+     * Если фоновое обновление не удалось, прежний токен используется до истечения, а обновление повторяется.
+     * Токен участника, не запрашивавшийся с прошлого обновления, не обновляется и удаляется из кэша.
+     */
+    static final class TokenProvider implements AutoCloseable {
+        private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final TokenSource source;
+        private final Executor executor;
+        private final long refreshAheadNanos;
+        private final ConcurrentHashMap<String, Cached> tokens = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, CompletableFuture<AuthToken>> refreshes = new ConcurrentHashMap<>();
+        // Единственное запланированное обновление участника; новое планирование отменяет прежнее
+        private final ConcurrentHashMap<String, CompletableFuture<Void>> scheduled = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        /**
+         * Токен в кэше; used отмечает обращения после последнего обновления.
+         */
+        private static final class Cached {
+            final AuthToken token;
+            volatile boolean used;
+
+            Cached(AuthToken token, boolean used) {
+                this.token = token;
+                this.used = used;
+            }
+        }
+
+        TokenProvider(TokenSource source, Duration refreshAhead, Executor executor) {
+            this.source = source;
+            this.executor = executor;
+            this.refreshAheadNanos = refreshAhead.toNanos();
+        }
+
+        CompletableFuture<AuthToken> token(String participant) {
+            Cached cached = tokens.get(participant);
+            if (cached != null && Instant.now().isBefore(cached.token.expiresAt())) {
+                cached.used = true;
+                return CompletableFuture.completedFuture(cached.token);
+            }
+            return refresh(participant, true);
+        }
+
+        /**
+         * Сбрасывает токен, отвергнутый API, чтобы следующий запрос получил новый.
+         */
+        void invalidate(String participant, String value) {
+            tokens.computeIfPresent(participant, (key, cached) -> cached.token.value().equals(value) ? null : cached);
+        }
+
+        /**
+         * @param demanded true, если токен нужен запросу, а не фоновому обновлению: такой токен сразу считается
+         *                 использованным.
+         */
+        private CompletableFuture<AuthToken> refresh(String participant, boolean demanded) {
+            CompletableFuture<AuthToken> promise = new CompletableFuture<>();
+            CompletableFuture<AuthToken> existing = refreshes.putIfAbsent(participant, promise);
+            if (existing != null) {
+                return existing;
+            }
+            CompletableFuture<AuthToken> fetched;
+            try {
+                fetched = source.fetchToken(participant);
+            } catch (RuntimeException e) {
+                fetched = CompletableFuture.failedFuture(e);
+            }
+            fetched.whenComplete((token, failure) -> {
+                if (failure == null) {
+                    tokens.put(participant, new Cached(token, demanded));
+                    // Для токенов короче refreshAhead обновление откладывается хотя бы на половину срока
+                    long lifetimeNanos = nanosUntil(token.expiresAt());
+                    scheduleRefresh(participant, Math.max(lifetimeNanos - refreshAheadNanos, lifetimeNanos / 2));
+                } else {
+                    // Прежний токен еще действует: обновление повторяется, пока он не истечет
+                    Cached cached = tokens.get(participant);
+                    if (cached != null && nanosUntil(cached.token.expiresAt()) > RETRY_NANOS) {
+                        scheduleRefresh(participant, RETRY_NANOS);
+                    }
+                }
+                refreshes.remove(participant, promise);
+                if (failure == null) {
+                    promise.complete(token);
+                } else {
+                    promise.completeExceptionally(new CrptApiException(
+                            "Failed to obtain auth token for participant " + participant, unwrap(failure)));
+                }
+            });
+            return promise;
+        }
+
+        /**
+         * Планирует обновление токена участника взамен ранее запланированного, поэтому обновления по требованию
+         * (например, после отказа 401) не порождают параллельные цепочки фоновых обновлений.
+         */
+        private void scheduleRefresh(String participant, long delayNanos) {
+            CompletableFuture<Void> timer = delay(delayNanos, executor);
+            CompletableFuture<Void> previous = scheduled.put(participant, timer);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            timer.thenRun(() -> {
+                if (closed || !scheduled.remove(participant, timer)) {
+                    return;
+                }
+                Cached cached = tokens.get(participant);
+                if (cached == null) {
+                    return;
+                }
+                if (!cached.used) {
+                    tokens.remove(participant, cached);
+                    return;
+                }
+                cached.used = false;
+                refresh(participant, false);
+            });
+        }
+
+        private static long nanosUntil(Instant instant) {
+            return Duration.between(Instant.now(), instant).toNanos();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            scheduled.values().forEach(timer -> timer.cancel(false));
+            scheduled.clear();
+            tokens.clear();
+        }
+    }
+
+    /**
+     * Слушатель результатов отправки документов.
+     * Вызывается в фоновом потоке CrptApi, а не в потоке, отправившем документ.
+     */
+    public interface DocumentListener {
+        DocumentListener NONE = new DocumentListener() {
+        };
+
+        /**
+         * Вызывается после успешного создания документа.
+         */
+        default void onSuccess(CreateGoodsDocumentRequest request, DocumentResponse response) {
+        }
+
+        /**
+         * Вызывается, если документ не удалось сериализовать, отправить, либо API его отклонило.
+         */
+        default void onFailure(CreateGoodsDocumentRequest request, Throwable failure) {
+        }
+    }
+
+    /**
+     * Исключение, возникающее при ошибке взаимодействия с API.
+     */
+    public static class CrptApiException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public CrptApiException(String message) {
+            super(message);
+        }
+
+        public CrptApiException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+        protected CrptApiException(String message, boolean writableStackTrace) {
+            super(message, null, false, writableStackTrace);
+        }
+    }
+
+    /**
+     * Исключение, возникающее, если запрос отклонен разомкнутым {@link CircuitBreaker}.
+     */
+    public static class CircuitBreakerOpenException extends CrptApiException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitBreakerOpenException() {
+            // Без трассировки стека: отказ должен стоить микросекунды
+            super("Circuit breaker is open, request rejected", false);
+        }
+    }
+
+    /**
+     * Исключение, возникающее, если документ не удалось отправить в пределах бюджета времени вызова.
+     */
+    public static class DeadlineExceededException extends CrptApiException {
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException() {
+            super("Deadline exceeded before the document could be sent", false);
+        }
+    }
+
+    /**
+     * Исключение, возникающее, если попытка не допущена к ожиданию разрешения из-за перегрузки:
+     * переполнена очередь ожидающих или ожидание превысило бы {@link Builder#maxPermitWait}.
+     */
+    public static class AdmissionRejectedException extends CrptApiException {
+        private static final long serialVersionUID = 1L;
+
+        public AdmissionRejectedException(String message) {
+            super(message, false);
+        }
+    }
+
+    /**
+     * Исключение, возникающее, если API ответило кодом ошибки и повторные попытки не помогли.
+     */
+    public static class ApiErrorException extends CrptApiException {
+        private static final long serialVersionUID = 1L;
+
+        private final DocumentResponse response;
+
+        public ApiErrorException(DocumentResponse response) {
+            super("API responded with status " + response.statusCode()
+                    + (response.errorMessage() == null ? "" : ": " + response.errorMessage()));
+            this.response = response;
+        }
+
+        /**
+         * @return Ответ API с кодом ошибки.
+         */
+        public DocumentResponse response() {
+            return response;
+        }
+    }
+
+    /**
+     * Приоритет документа в очереди разрешений.
+     */
+    public enum Priority {
+        URGENT(16), NORMAL(4), BULK(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return Вес в режиме {@link PriorityMode#WEIGHTED}.
+         */
+        public int weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Способ выбора очереди приоритета при выдаче разрешения.
+     */
+    public enum PriorityMode {
+        /**
+         * Единая очередь в порядке поступления без учета приоритета: освободившееся разрешение
+         * передается напрямую самому давнему ожидающему, и новые вызовы не могут его перехватить.
+         */
+        FIFO,
+        /**
+         * Разрешение всегда получает самый приоритетный ожидающий.
+         */
+        STRICT,
+        /**
+         * Разрешения распределяются пропорционально весам приоритетов (плавный взвешенный round-robin),
+         * поэтому низкий приоритет замедляется, но не голодает.
+         */
+        WEIGHTED
+    }
+
+    /**
+     * Очередь ожидающих разрешения, по одной FIFO-очереди на приоритет (в режиме FIFO - одна общая).
+     * Разрешение у ограничителя берется только тогда, когда оно доступно немедленно, и сразу передается
+     * выбранному ожидающему; если разрешений нет, очередь просыпается по таймеру к моменту следующего.
+     */
+    static final class PermitScheduler {
+        private static final Priority[] PRIORITIES = Priority.values();
+
+        private final RateLimiter rateLimiter;
+        private final PriorityMode mode;
+        private final Executor executor;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<ArrayDeque<Waiter>> lanes = new ArrayList<>();
+        // Текущие веса плавного взвешенного round-robin
+        private final long[] credits = new long[PRIORITIES.length];
+        private boolean wakeupScheduled;
+
+        /**
+         * Ожидающий разрешения; поля защищены lock.
+         */
+        private static final class Waiter {
+            final CompletableFuture<Void> permit = new CompletableFuture<>();
+            boolean granted;
+            boolean abandoned;
+        }
+
+        PermitScheduler(RateLimiter rateLimiter, PriorityMode mode, Executor executor) {
+            this.rateLimiter = rateLimiter;
+            this.mode = mode;
+            this.executor = executor;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                lanes.add(new ArrayDeque<>());
+            }
+        }
+
+        /**
+         * Ставит вызывающего в очередь приоритета.
+         *
+         * @return Future, завершающийся при выдаче разрешения, либо исключением onTimeout,
+         * если разрешение не выдано до deadlineNanos; в этом случае разрешение не расходуется.
+         */
+        CompletableFuture<Void> acquire(Priority priority, long deadlineNanos,
+                                        Supplier<? extends CrptApiException> onTimeout) {
+            Waiter waiter = new Waiter();
+            lock.lock();
+            try {
+                lanes.get(mode == PriorityMode.FIFO ? 0 : priority.ordinal()).add(waiter);
+            } finally {
+                lock.unlock();
+            }
+            if (deadlineNanos != NO_DEADLINE) {
+                delay(deadlineNanos - System.nanoTime(), executor).thenRun(() -> abandon(waiter, onTimeout));
+            }
+            drain();
+            return waiter.permit;
+        }
+
+        private void abandon(Waiter waiter, Supplier<? extends CrptApiException> onTimeout) {
+            lock.lock();
+            try {
+                if (waiter.granted) {
+                    return;
+                }
+                waiter.abandoned = true;
+            } finally {
+                lock.unlock();
+            }
+            waiter.permit.completeExceptionally(onTimeout.get());
+        }
+
+        /**
+         * Раздает доступные разрешения ожидающим; продолжения запускаются вне блокировки.
+         */
+        void drain() {
+            List<Waiter> granted = new ArrayList<>();
+            lock.lock();
+            try {
+                while (true) {
+                    int chosen = nextLane();
+                    if (chosen < 0) {
+                        break;
+                    }
+                    if (rateLimiter.tryReserve(0) < 0) {
+                        scheduleWakeup(rateLimiter.nanosToNextPermit());
+                        break;
+                    }
+                    // Веса round-robin сдвигаются только выданным разрешением: иначе каждое прибытие без свободного
+                    // разрешения смещало бы очередность, и при неудачном ритме прибытий низкий приоритет голодал бы
+                    charge(chosen);
+                    Waiter waiter = lanes.get(chosen).poll();
+                    waiter.granted = true;
+                    granted.add(waiter);
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Waiter waiter : granted) {
+                waiter.permit.complete(null);
+            }
+        }
+
+        /**
+         * Выбирает очередь следующего ожидающего, не изменяя весов.
+         *
+         * @return Индекс очереди, либо -1, если ожидающих нет.
+         */
+        private int nextLane() {
+            int chosen = -1;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                ArrayDeque<Waiter> lane = lanes.get(i);
+                // Снятые по сроку и отмененные ожидающие пропускаются
+                while (!lane.isEmpty() && (lane.peek().abandoned || lane.peek().permit.isDone())) {
+                    lane.poll();
+                }
+                if (lane.isEmpty()) {
+                    continue;
+                }
+                if (mode != PriorityMode.WEIGHTED) {
+                    return i;
+                }
+                if (chosen < 0 || credits[i] + PRIORITIES[i].weight() > credits[chosen] + PRIORITIES[chosen].weight()) {
+                    chosen = i;
+                }
+            }
+            return chosen;
+        }
+
+        /**
+         * Начисляет веса непустым очередям и списывает их сумму с очереди, получившей разрешение.
+         */
+        private void charge(int chosen) {
+            if (mode != PriorityMode.WEIGHTED) {
+                return;
+            }
+            long totalWeight = 0;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                if (!lanes.get(i).isEmpty()) {
+                    credits[i] += PRIORITIES[i].weight();
+                    totalWeight += PRIORITIES[i].weight();
+                }
+            }
+            credits[chosen] -= totalWeight;
+        }
+
+        private void scheduleWakeup(long nanos) {
+            if (wakeupScheduled) {
+                return;
+            }
+            wakeupScheduled = true;
+            delay(Math.max(1, nanos), executor).whenComplete((ignored, failure) -> {
+                List<Waiter> rejected = new ArrayList<>();
+                lock.lock();
+                try {
+                    wakeupScheduled = false;
+                    if (failure != null) {
+                        // Пул закрыт: ожидающие больше не получат разрешения
+                        for (ArrayDeque<Waiter> lane : lanes) {
+                            for (Waiter waiter : lane) {
+                                waiter.abandoned = true;
+                                rejected.add(waiter);
+                            }
+                            lane.clear();
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (failure == null) {
+                    drain();
+                }
+                rejected.forEach(waiter -> waiter.permit.completeExceptionally(failure));
+            });
+        }
+    }
+
+    /**
+     * Ограничитель частоты запросов к API.
+     */
+    public interface RateLimiter {
+
+        /**
+         * Атомарно резервирует разрешение на выполнение запроса, не блокируя поток.
+         * Зарезервированное разрешение считается израсходованным: вызывающий обязан выполнить запрос
+         * не раньше, чем через возвращенное время, и ни один другой вызов не получит тот же слот.
+         *
+         * @return Время в наносекундах до момента, когда разрешение можно использовать; 0 - немедленно.
+         */
+        default long reserve() {
+            return tryReserve(Long.MAX_VALUE);
+        }
+
+        /**
+         * Резервирует разрешение, только если его можно использовать не позже чем через maxWaitNanos.
+         * Иначе ничего не резервирует.
+         *
+         * @return Время в наносекундах до момента, когда разрешение можно использовать, либо -1.
+         */
+        long tryReserve(long maxWaitNanos);
+
+        /**
+         * Оценивает время до появления следующего разрешения, ничего не резервируя.
+         * Реализация по умолчанию возвращает 1 мс, что для произвольного ограничителя означает
+         * повторную проверку с таким интервалом.
+         *
+         * @return Время в наносекундах; 0 - разрешение доступно сейчас.
+         */
+        default long nanosToNextPermit() {
+            return TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * Получает разрешение, только если оно доступно немедленно.
+         *
+         * @return true, если разрешение получено; false - разрешение не расходуется.
+         */
+        default boolean tryAcquire() {
+            return tryReserve(0) >= 0;
+        }
+
+        /**
+         * Ожидает разрешение не дольше timeout. Если разрешение наступит позже, возвращает false сразу,
+         * не дожидаясь истечения timeout и не расходуя разрешение.
+         *
+         * @throws InterruptedException если поток был прерван во время ожидания.
+         */
+        default boolean tryAcquire(Duration timeout) throws InterruptedException {
+            long waitNanos = tryReserve(timeout.toNanos());
+            if (waitNanos < 0) {
+                return false;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            return true;
+        }
+
+        /**
+         * Блокирует вызывающий поток до получения разрешения на выполнение запроса.
+         *
+         * @throws InterruptedException если поток был прерван во время ожидания.
+         */
+        default void acquire() throws InterruptedException {
+            long waitNanos = reserve();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        /**
+         * Сообщает ограничителю ответ API, полученный по зарезервированному разрешению.
+         * Используется ограничителями, подстраивающимися под фактическую квоту сервера.
+         */
+        default void onResponse(HttpResponse<?> response) {
+        }
+    }
+
+    /**
+     * Ограничитель на основе маркерного ведра (token bucket).
+     * Ведро вмещает burst разрешений и пополняется равномерно: по одному разрешению каждые
+     * window / (requestLimit - burst + 1). Разрешение выдается сразу, а при пустом ведре резервируется
+     * следующее разрешение, и поток засыпает ровно до момента его появления, без опроса.
+     * Всплеск из burst разрешений плюс пополнение за окно не превышают requestLimit, поэтому в любом окне
+     * никогда не бывает больше requestLimit запросов; платой за всплеск является меньшая средняя частота.
+     */
+    public static final class TokenBucketRateLimiter implements RateLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long capacity;
+        private final long nanosPerPermit;
+        private final LongSupplier clock;
+
+        // Может быть отрицательным: число разрешений, уже зарезервированных ожидающими потоками
+        private long tokens;
+        private long lastRefillNanos;
+
+        /**
+         * Равномерный ограничитель без всплесков: разрешения выдаются каждые window / requestLimit.
+         *
+         * @param requestLimit Максимальное количество запросов в окне.
+         * @param window       Длительность окна.
+         */
+        public TokenBucketRateLimiter(int requestLimit, Duration window) {
+            this(requestLimit, window, 1);
+        }
+
+        /**
+         * @param requestLimit Максимальное количество запросов в окне.
+         * @param window       Длительность окна.
+         * @param burst        Емкость ведра, от 1 до requestLimit.
+         */
+        public TokenBucketRateLimiter(int requestLimit, Duration window, int burst) {
+            this(requestLimit, window, burst, System::nanoTime);
+        }
+
+        /**
+         * @param clock Источник времени в наносекундах; в тестах позволяет узнать назначенное время разрешения.
+         */
+        TokenBucketRateLimiter(int requestLimit, Duration window, int burst, LongSupplier clock) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+            }
+            if (burst <= 0 || burst > requestLimit) {
+                throw new IllegalArgumentException("Invalid burst, must be between 1 and requestLimit");
+            }
+            long refills = requestLimit - burst + 1;
+            this.capacity = burst;
+            // Округление вверх: refills интервалов не короче окна
+            this.nanosPerPermit = Math.max(1, (window.toNanos() + refills - 1) / refills);
+            this.clock = clock;
+            this.tokens = burst;
+            this.lastRefillNanos = clock.getAsLong();
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            // Ожидание выполняется вызывающим вне блокировки, чтобы не задерживать остальные потоки
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                refill(now);
+                long remaining = tokens - 1;
+                long waitNanos = remaining >= 0 ? 0 : -remaining * nanosPerPermit - (now - lastRefillNanos);
+                if (waitNanos > maxWaitNanos) {
+                    return -1;
+                }
+                tokens = remaining;
+                return waitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                refill(now);
+                return tokens > 0 ? 0 : Math.max(0, (1 - tokens) * nanosPerPermit - (now - lastRefillNanos));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill(long now) {
+            if (tokens >= capacity) {
+                // Полное ведро не копит время: иначе следующее разрешение пришло бы раньше, чем через интервал
+                lastRefillNanos = now;
+                return;
+            }
+            long permits = (now - lastRefillNanos) / nanosPerPermit;
+            if (permits > 0) {
+                tokens = Math.min(capacity, tokens + permits);
+                lastRefillNanos = tokens == capacity ? now : lastRefillNanos + permits * nanosPerPermit;
+            }
+        }
+    }
+
+    /**
+     * Неблокирующий ограничитель со скользящим окном.
+     * Время последних requestLimit разрешений хранится в кольцевом массиве примитивов long;
+     * очередной слот захватывается через CAS, поэтому ограничитель не использует блокировок
+     * и не выделяет память на каждый запрос.
+     * Разрешение с номером n назначается не раньше, чем через окно после разрешения n - requestLimit,
+     * поэтому в любом окне никогда не бывает больше requestLimit запросов.
+     */
+    public static final class SlidingWindowRateLimiter implements RateLimiter {
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final int limit;
+        private final long windowNanos;
+        // Назначенное время разрешения, занимавшего слот
+        private final long[] times;
+        // Номер разрешения + 1, опубликованного в слоте; 0 - слот еще не использовался
+        private final long[] stamps;
+        private final AtomicLong head = new AtomicLong();
+        private final LongSupplier clock;
+
+        /**
+         * @param requestLimit Максимальное количество запросов в окне.
+         * @param window       Длительность окна.
+         */
+        public SlidingWindowRateLimiter(int requestLimit, Duration window) {
+            this(requestLimit, window, System::nanoTime);
+        }
+
+        /**
+         * @param clock Источник времени в наносекундах; в тестах позволяет узнать назначенное время разрешения.
+         */
+        SlidingWindowRateLimiter(int requestLimit, Duration window, LongSupplier clock) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+            }
+            this.limit = requestLimit;
+            this.windowNanos = window.toNanos();
+            this.times = new long[requestLimit];
+            this.stamps = new long[requestLimit];
+            this.clock = clock;
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            while (true) {
+                long seq = head.get();
+                int slot = (int) (seq % limit);
+                long expectedStamp = seq >= limit ? seq - limit + 1 : 0;
+                long stamp = (long) SLOTS.getAcquire(stamps, slot);
+                if (stamp != expectedStamp) {
+                    // Предыдущий владелец слота еще не опубликовал время, либо head уже сдвинулся
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                long now = clock.getAsLong();
+                long permitTime = stamp == 0 ? now : Math.max(now, times[slot] + windowNanos);
+                if (permitTime - now > maxWaitNanos) {
+                    return -1;
+                }
+                if (head.compareAndSet(seq, seq + 1)) {
+                    times[slot] = permitTime;
+                    SLOTS.setRelease(stamps, slot, seq + 1);
+                    return permitTime - now;
+                }
+            }
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            while (true) {
+                long seq = head.get();
+                int slot = (int) (seq % limit);
+                long stamp = (long) SLOTS.getAcquire(stamps, slot);
+                if (stamp != (seq >= limit ? seq - limit + 1 : 0)) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                return stamp == 0 ? 0 : Math.max(0, times[slot] + windowNanos - clock.getAsLong());
+            }
+        }
+    }
+
+    /**
+     * Ограничитель, одновременно соблюдающий несколько скользящих окон, например 10 в секунду и 300 в минуту.
+     * Все окна считают одну и ту же последовательность разрешений, поэтому хватает одного кольца времен
+     * размером с наибольший лимит: разрешение n назначается не раньше времени разрешения n - limit + window
+     * для каждого окна и не раньше разрешения n - 1. Как и {@link SlidingWindowRateLimiter}, разрешение
+     * занимается одним CAS по head, так что проверка всех окон атомарна без блокировок.
+     */
+    public static final class MultiWindowRateLimiter implements RateLimiter {
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        /**
+         * Окно ограничения.
+         *
+         * @param requestLimit Максимальное количество запросов в окне.
+         * @param duration     Длительность окна, например 15 секунд.
+         */
+        public record Window(int requestLimit, Duration duration) {
+            public Window {
+                if (requestLimit <= 0) {
+                    throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+                }
+                if (duration.isNegative() || duration.isZero()) {
+                    throw new IllegalArgumentException("Invalid window duration, must be positive");
+                }
+            }
+        }
+
+        private final int[] limits;
+        private final long[] windowNanos;
+        private final int capacity;
+        // Назначенное время разрешения, занимавшего слот
+        private final long[] times;
+        // Номер разрешения + 1, опубликованного в слоте; 0 - слот еще не использовался
+        private final long[] stamps;
+        private final AtomicLong head = new AtomicLong();
+        private final LongSupplier clock;
+
+        public MultiWindowRateLimiter(Window... windows) {
+            this(System::nanoTime, windows);
+        }
+
+        /**
+         * @param clock Источник времени в наносекундах; в тестах позволяет узнать назначенное время разрешения.
+         */
+        MultiWindowRateLimiter(LongSupplier clock, Window... windows) {
+            if (windows.length == 0) {
+                throw new IllegalArgumentException("At least one window is required");
+            }
+            this.limits = new int[windows.length];
+            this.windowNanos = new long[windows.length];
+            int maxLimit = 1;
+            for (int i = 0; i < windows.length; i++) {
+                limits[i] = windows[i].requestLimit();
+                windowNanos[i] = windows[i].duration().toNanos();
+                maxLimit = Math.max(maxLimit, limits[i]);
+            }
+            this.capacity = maxLimit;
+            this.times = new long[maxLimit];
+            this.stamps = new long[maxLimit];
+            this.clock = clock;
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            while (true) {
+                long seq = head.get();
+                long permitTime = earliestPermitTime(seq);
+                if (permitTime == Long.MIN_VALUE) {
+                    // Предыдущий владелец одного из слотов еще не опубликовал время, либо head уже сдвинулся
+                    Thread.onSpinWait();
+                    continue;
+                }
+                long now = clock.getAsLong();
+                permitTime = Math.max(now, permitTime);
+                if (permitTime - now > maxWaitNanos) {
+                    return -1;
+                }
+                if (head.compareAndSet(seq, seq + 1)) {
+                    int slot = (int) (seq % capacity);
+                    times[slot] = permitTime;
+                    SLOTS.setRelease(stamps, slot, seq + 1);
+                    return permitTime - now;
+                }
+            }
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            while (true) {
+                long permitTime = earliestPermitTime(head.get());
+                if (permitTime != Long.MIN_VALUE) {
+                    return Math.max(0, permitTime - clock.getAsLong());
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * @return Самое раннее время разрешения seq по всем окнам, 0 - если ограничений нет,
+         * либо Long.MIN_VALUE, если нужные слоты еще не опубликованы.
+         */
+        private long earliestPermitTime(long seq) {
+            long earliest = 0;
+            if (seq > 0) {
+                long previous = publishedTime(seq - 1);
+                if (previous == Long.MIN_VALUE) {
+                    return Long.MIN_VALUE;
+                }
+                earliest = previous;
+            }
+            for (int i = 0; i < limits.length; i++) {
+                if (seq < limits[i]) {
+                    continue;
+                }
+                long time = publishedTime(seq - limits[i]);
+                if (time == Long.MIN_VALUE) {
+                    return Long.MIN_VALUE;
+                }
+                earliest = Math.max(earliest, time + windowNanos[i]);
+            }
+            return earliest;
+        }
+
+        private long publishedTime(long seq) {
+            int slot = (int) (seq % capacity);
+            return (long) SLOTS.getAcquire(stamps, slot) == seq + 1 ? times[slot] : Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Адаптивный ограничитель, подбирающий частоту запросов по ответам API (AIMD).
+     * Пока ответы успешны, частота растет аддитивно: примерно на increasePerSecond запросов в секунду
+     * за каждую секунду работы на полной скорости. Ответ 429 уменьшает частоту в decreaseFactor раз,
+     * но не чаще раза в секунду, чтобы пачка одновременных отказов не обрушила ее до минимума.
+     * Разрешения выдаются равномерно с интервалом 1 / currentRate без блокировок.
+     * Явные указания API учитываются сверх AIMD: Retry-After в ответах 429 и 503 приостанавливает выдачу
+     * разрешений, а X-RateLimit-Remaining и X-RateLimit-Reset ограничивают частоту остатком квоты до ее сброса.
+     */
+    public static final class AdaptiveRateLimiter implements RateLimiter {
+        private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final double minRate;
+        private final double maxRate;
+        private final double increasePerSecond;
+        private final double decreaseFactor;
+        // Текущая частота в запросах в секунду, хранится как биты double
+        private final AtomicLong rateBits;
+        private final AtomicLong nextPermitNanos = new AtomicLong(System.nanoTime());
+        private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime() - DECREASE_COOLDOWN_NANOS);
+
+        /**
+         * @param initialRate       Начальная частота, запросов в секунду.
+         * @param minRate           Минимальная частота, запросов в секунду.
+         * @param maxRate           Максимальная частота, запросов в секунду.
+         * @param increasePerSecond Прирост частоты за секунду успешной работы.
+         * @param decreaseFactor    Множитель частоты при ответе 429, от 0 до 1.
+         */
+        public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate,
+                                   double increasePerSecond, double decreaseFactor) {
+            if (minRate <= 0 || maxRate < minRate || initialRate < minRate || initialRate > maxRate) {
+                throw new IllegalArgumentException("Invalid rates, must satisfy 0 < minRate <= initialRate <= maxRate");
+            }
+            if (increasePerSecond < 0 || decreaseFactor <= 0 || decreaseFactor >= 1) {
+                throw new IllegalArgumentException("Invalid increasePerSecond or decreaseFactor");
+            }
+            this.minRate = minRate;
+            this.maxRate = maxRate;
+            this.increasePerSecond = increasePerSecond;
+            this.decreaseFactor = decreaseFactor;
+            this.rateBits = new AtomicLong(Double.doubleToLongBits(initialRate));
+        }
+
+        /**
+         * @return Текущая эффективная частота, запросов в секунду.
+         */
+        public double currentRate() {
+            return Double.longBitsToDouble(rateBits.get());
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / currentRate());
+            while (true) {
+                long now = System.nanoTime();
+                long next = nextPermitNanos.get();
+                long permitTime = Math.max(now, next);
+                if (permitTime - now > maxWaitNanos) {
+                    return -1;
+                }
+                if (nextPermitNanos.compareAndSet(next, permitTime + intervalNanos)) {
+                    return permitTime - now;
+                }
+            }
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            return Math.max(0, nextPermitNanos.get() - System.nanoTime());
+        }
+
+        @Override
+        public void onResponse(HttpResponse<?> response) {
+            long now = System.nanoTime();
+            if (response.statusCode() == 429 || response.statusCode() == 503) {
+                pauseUntil(now + RetryPolicy.retryAfterNanos(response));
+            }
+            long remaining = longHeader(response, "X-RateLimit-Remaining");
+            long resetNanos = resetNanos(longHeader(response, "X-RateLimit-Reset"));
+            if (remaining == 0 && resetNanos > 0) {
+                pauseUntil(now + resetNanos);
+            } else if (remaining > 0 && resetNanos > 0) {
+                // Остаток квоты не должен закончиться раньше ее сброса
+                double quotaRate = remaining / (resetNanos / (double) TimeUnit.SECONDS.toNanos(1));
+                updateRate(rate -> Math.max(minRate, Math.min(rate, quotaRate)));
+            }
+
+            if (response.statusCode() == 429) {
+                long last = lastDecreaseNanos.get();
+                if (now - last >= DECREASE_COOLDOWN_NANOS && lastDecreaseNanos.compareAndSet(last, now)) {
+                    updateRate(rate -> Math.max(minRate, rate * decreaseFactor));
+                }
+            } else if (response.statusCode() < 500) {
+                // rate ответов в секунду дают в сумме прирост increasePerSecond
+                updateRate(rate -> Math.min(maxRate, rate + increasePerSecond / rate));
+            }
+        }
+
+        private void updateRate(DoubleUnaryOperator update) {
+            rateBits.getAndUpdate(bits -> Double.doubleToLongBits(update.applyAsDouble(Double.longBitsToDouble(bits))));
+        }
+
+        /**
+         * Откладывает следующее разрешение не раньше pauseEndNanos.
+         */
+        private void pauseUntil(long pauseEndNanos) {
+            nextPermitNanos.accumulateAndGet(pauseEndNanos, Math::max);
+        }
+
+        /**
+         * @return Время до сброса квоты; X-RateLimit-Reset бывает числом секунд до сброса либо временем сброса
+         * в секундах Unix, различаемыми по величине. 0, если заголовка нет.
+         */
+        private static long resetNanos(long reset) {
+            if (reset <= 0) {
+                return 0;
+            }
+            long seconds = reset > 1_000_000_000L ? reset - Instant.now().getEpochSecond() : reset;
+            return Math.max(0, TimeUnit.SECONDS.toNanos(seconds));
+        }
+
+        /**
+         * @return Значение заголовка, либо -1, если его нет или оно не число.
+         */
+        private static long longHeader(HttpResponse<?> response, String name) {
+            try {
+                return response.headers().firstValue(name).map(value -> Long.parseLong(value.trim())).orElse(-1L);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Общая квота, разделяемая несколькими экземплярами CrptApi, в том числе в разных процессах.
+     * Квота выдается арендой: пачка разрешений, которые можно израсходовать в интервале
+     * [startNanos, expiresNanos]. Реализация учитывает разрешения аренды так, как если бы все они
+     * были использованы в момент ее истечения, поэтому аренда не может привести к превышению лимита.
+     */
+    public interface SharedQuota {
+
+        /**
+         * Аренда разрешений общей квоты. Времена указаны в шкале {@link System#nanoTime()} текущего процесса.
+         *
+         * @param permits      Количество разрешений.
+         * @param startNanos   Момент, начиная с которого разрешения можно расходовать.
+         * @param expiresNanos Момент, до которого разрешения нужно израсходовать.
+         */
+        record Lease(int permits, long startNanos, long expiresNanos) {
+        }
+
+        /**
+         * Арендует от 1 до maxPermits разрешений, доступных к одному моменту времени.
+         *
+         * @param maxPermits   Желаемое количество разрешений.
+         * @param leaseNanos   Длительность аренды начиная с момента доступности; 0 - разрешения расходуются сразу.
+         * @param maxWaitNanos Максимальное допустимое ожидание начала аренды.
+         * @return Аренда, либо null, если разрешения не наступят в пределах maxWaitNanos; квота при этом не расходуется.
+         */
+        Lease tryLease(int maxPermits, long leaseNanos, long maxWaitNanos);
+
+        /**
+         * @return Оценка времени до появления следующего разрешения в наносекундах, ничего не резервируя.
+         */
+        long nanosToNextPermit();
+    }
+
+    /**
+     * Общая квота скользящего окна в отображенном в память файле для процессов на одном хосте.
+     * Файл хранит кольцо времен последних limit разрешений в миллисекундах настенных часов, одинаковых для
+     * всех процессов. Изменения кольца выполняются под блокировкой файла, которую ОС снимает при падении
+     * процесса, поэтому аварийно завершившаяся реплика не оставляет квоту захваченной.
+     * Каждый вызов {@link #tryReserve} согласуется через файл; чтобы реже обращаться к нему,
+     * используйте {@link LeasingRateLimiter}.
+     */
+    public static final class SharedFileQuota implements SharedQuota, RateLimiter, AutoCloseable {
+        private static final int MAGIC = 0x43525054;
+        private static final int LIMIT_OFFSET = Integer.BYTES;
+        private static final int WINDOW_OFFSET = 2 * Integer.BYTES;
+        private static final int HEAD_OFFSET = WINDOW_OFFSET + Long.BYTES;
+        private static final int TIMES_OFFSET = HEAD_OFFSET + Long.BYTES;
+
+        private final int limit;
+        private final long windowMillis;
+        // Блокировка файла принадлежит JVM целиком, поэтому потоки процесса упорядочиваются отдельно
+        private final ReentrantLock lock = new ReentrantLock();
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Открывает или создает файл квоты. Все процессы должны открывать его с одинаковыми параметрами.
+         *
+         * @param path         Путь к файлу квоты.
+         * @param requestLimit Максимальное количество запросов в окне для всех процессов вместе.
+         * @param window       Длительность окна, с точностью до миллисекунды.
+         * @throws IOException              если файл не удалось открыть.
+         * @throws IllegalArgumentException если файл создан с другими параметрами.
+         */
+        public SharedFileQuota(Path path, int requestLimit, Duration window) throws IOException {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Invalid requestLimit, must be a positive number");
+            }
+            this.limit = requestLimit;
+            this.windowMillis = window.toMillis();
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Канал закрывается при любом сбое инициализации, иначе он остался бы открытым без владельца
+            try {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, TIMES_OFFSET + (long) requestLimit * Long.BYTES);
+                boolean compatible;
+                lock.lock();
+                FileLock fileLock = null;
+                try {
+                    fileLock = channel.lock();
+                    if (buffer.getInt(0) != MAGIC) {
+                        buffer.putInt(LIMIT_OFFSET, requestLimit);
+                        buffer.putLong(WINDOW_OFFSET, windowMillis);
+                        buffer.putInt(0, MAGIC);
+                    }
+                    compatible = buffer.getInt(LIMIT_OFFSET) == requestLimit && buffer.getLong(WINDOW_OFFSET) == windowMillis;
+                } finally {
+                    if (fileLock != null) {
+                        fileLock.release();
+                    }
+                    lock.unlock();
+                }
+                if (!compatible) {
+                    throw new IllegalArgumentException("Quota file " + path + " was created with different limits");
+                }
+            } catch (IOException | RuntimeException e) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public Lease tryLease(int maxPermits, long leaseNanos, long maxWaitNanos) {
+            lock.lock();
+            FileLock fileLock = null;
+            try {
+                fileLock = channel.lock();
+                long head = buffer.getLong(HEAD_OFFSET);
+                long nowMillis = System.currentTimeMillis();
+                long nowNanos = System.nanoTime();
+                long startMillis = Math.max(nowMillis, availableAt(head));
+                if (TimeUnit.MILLISECONDS.toNanos(startMillis - nowMillis) > maxWaitNanos) {
+                    return null;
+                }
+                // Следующие слоты берутся, пока они освобождаются не позже первого
+                int permits = 1;
+                while (permits < Math.min(maxPermits, limit) && availableAt(head + permits) <= startMillis) {
+                    permits++;
+                }
+                long expiresMillis = startMillis + TimeUnit.NANOSECONDS.toMillis(leaseNanos + 999_999);
+                for (int i = 0; i < permits; i++) {
+                    buffer.putLong(slotOffset(head + i), expiresMillis);
+                }
+                buffer.putLong(HEAD_OFFSET, head + permits);
+                long startNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(startMillis - nowMillis);
+                return new Lease(permits, startNanos, startNanos + leaseNanos);
+            } catch (IOException e) {
+                throw new CrptApiException("Failed to lock shared quota file", e);
+            } finally {
+                releaseQuietly(fileLock);
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            Lease lease = tryLease(1, 0, maxWaitNanos);
+            return lease == null ? -1 : Math.max(0, lease.startNanos() - System.nanoTime());
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            // Чтение без блокировки файла: значение является лишь оценкой
+            long availableAt = availableAt(buffer.getLong(HEAD_OFFSET));
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, availableAt - System.currentTimeMillis()));
+        }
+
+        private static void releaseQuietly(FileLock fileLock) {
+            if (fileLock == null) {
+                return;
+            }
+            try {
+                fileLock.release();
+            } catch (IOException e) {
+                // Блокировка снимается и при закрытии канала; исключение здесь скрыло бы основное
+            }
+        }
+
+        private long availableAt(long seq) {
+            long time = buffer.getLong(slotOffset(seq));
+            return time == 0 ? 0 : time + windowMillis;
+        }
+
+        private int slotOffset(long seq) {
+            return TIMES_OFFSET + (int) (seq % limit) * Long.BYTES;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                buffer.force();
+                channel.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ограничитель, расходующий общую квоту {@link SharedQuota} пачками.
+     * Реплика арендует до batchSize разрешений за одно обращение к квоте и расходует их локально в течение
+     * leaseDuration; неизрасходованные к истечению аренды разрешения пропадают. Статического деления квоты
+     * между репликами нет: простаивающая реплика ничего не арендует, и ее доля достается активным.
+     * Чем больше batchSize и leaseDuration, тем реже обращения к квоте, но тем больше квоты может
+     * простаивать в чужих арендах.
+     */
+    public static final class LeasingRateLimiter implements RateLimiter {
+        private final SharedQuota quota;
+        private final int batchSize;
+        private final long leaseNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int leased;
+        private long leaseStartNanos;
+        private long leaseExpiresNanos;
+
+        /**
+         * @param quota         Общая квота.
+         * @param batchSize     Максимальное количество разрешений в одной аренде.
+         * @param leaseDuration Время, в течение которого арендованные разрешения можно расходовать.
+         */
+        public LeasingRateLimiter(SharedQuota quota, int batchSize, Duration leaseDuration) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Invalid batchSize, must be a positive number");
+            }
+            this.quota = quota;
+            this.batchSize = batchSize;
+            this.leaseNanos = leaseDuration.toNanos();
+        }
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long useAt = Math.max(now, leaseStartNanos);
+                if (leased > 0 && useAt - now <= maxWaitNanos && useAt < leaseExpiresNanos) {
+                    leased--;
+                    return useAt - now;
+                }
+                SharedQuota.Lease lease = quota.tryLease(batchSize, leaseNanos, maxWaitNanos);
+                if (lease == null) {
+                    return -1;
+                }
+                leased = lease.permits() - 1;
+                leaseStartNanos = lease.startNanos();
+                leaseExpiresNanos = lease.expiresNanos();
+                return Math.max(0, lease.startNanos() - now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (leased > 0 && Math.max(now, leaseStartNanos) < leaseExpiresNanos) {
+                    return Math.max(0, leaseStartNanos - now);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return quota.nanosToNextPermit();
+        }
+    }
+
+    /**
+     * Класс CreateGoodsDocumentRequest представляет данные для создания документа ввода в оборот товара, произведенного в РФ.
+     * Неизменяемая запись: экземпляры можно безопасно разделять между потоками и кэшировать.
+     */
+    public record CreateGoodsDocumentRequest(
+            @JsonProperty("description") String description,
+            @JsonProperty("doc_id") String docId,
+            @JsonProperty("doc_status") String docStatus,
+            @JsonProperty("doc_type") String docType,
+            @JsonProperty("importRequest") boolean importRequest,
+            @JsonProperty("owner_inn") String ownerInn,
+            @JsonProperty("participant_inn") String participantInn,
+            @JsonProperty("producer_inn") String producerInn,
+            @JsonProperty("production_date") String productionDate,
+            @JsonProperty("production_type") String productionType,
+            @JsonProperty("products") List<Product> products,
+            @JsonProperty("reg_date") String regDate,
+            @JsonProperty("reg_number") String regNumber) {
+        public CreateGoodsDocumentRequest {
+            products = products == null ? List.of() : List.copyOf(products);
+        }
+
+        /**
+         * @return Построитель CreateGoodsDocumentRequest.
+         */
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        int productCount() {
+            return products.size();
+        }
+
+        /**
+         * Построитель CreateGoodsDocumentRequest.
+         */
+        public static final class Builder {
+            private String description;
+            private String docId;
+            private String docStatus;
+            private String docType;
+            private boolean importRequest;
+            private String ownerInn;
+            private String participantInn;
+            private String producerInn;
+            private String productionDate;
+            private String productionType;
+            private List<Product> products;
+            private String regDate;
+            private String regNumber;
+
+            private Builder() {
+            }
+
+            public Builder description(String description) {
+                this.description = description;
+                return this;
+            }
+
+            public Builder docId(String docId) {
+                this.docId = docId;
+                return this;
+            }
+
+            public Builder docStatus(String docStatus) {
+                this.docStatus = docStatus;
+                return this;
+            }
+
+            public Builder docType(String docType) {
+                this.docType = docType;
+                return this;
+            }
+
+            public Builder importRequest(boolean importRequest) {
+                this.importRequest = importRequest;
+                return this;
+            }
+
+            public Builder ownerInn(String ownerInn) {
+                this.ownerInn = ownerInn;
+                return this;
+            }
+
+            public Builder participantInn(String participantInn) {
+                this.participantInn = participantInn;
+                return this;
+            }
+
+            public Builder producerInn(String producerInn) {
+                this.producerInn = producerInn;
+                return this;
+            }
+
+            public Builder productionDate(String productionDate) {
+                this.productionDate = productionDate;
+                return this;
+            }
+
+            public Builder productionType(String productionType) {
+                this.productionType = productionType;
+                return this;
+            }
+
+            public Builder products(List<Product> products) {
+                this.products = products;
+                return this;
+            }
+
+            public Builder products(Product... products) {
+                this.products = List.of(products);
+                return this;
+            }
+
+            public Builder regDate(String regDate) {
+                this.regDate = regDate;
+                return this;
+            }
+
+            public Builder regNumber(String regNumber) {
+                this.regNumber = regNumber;
+                return this;
+            }
+
+            public CreateGoodsDocumentRequest build() {
+                return new CreateGoodsDocumentRequest(description, docId, docStatus, docType, importRequest, ownerInn, participantInn, producerInn, productionDate, productionType, products, regDate, regNumber);
+            }
+        }
+    }
+
+    /**
+     * Класс Product представляет данные о продукте для документа ввода в оборот товара, произведенного в РФ.
+     * Неизменяемая запись: экземпляры можно безопасно разделять между потоками и кэшировать.
+     */
+    public record Product(
+            @JsonProperty("certificate_document") String certificateDocument,
+            @JsonProperty("certificate_document_date") String certificateDocumentDate,
+            @JsonProperty("certificate_document_number") String certificateDocumentNumber,
+            @JsonProperty("owner_inn") String ownerInn,
+            @JsonProperty("producer_inn") String producerInn,
+            @JsonProperty("production_date") String productionDate,
+            @JsonProperty("tnved_code") String tnvedCode,
+            @JsonProperty("uit_code") String uitCode,
+            @JsonProperty("uitu_code") String uituCode) {
+
+        /**
+         * @return Построитель Product.
+         */
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        /**
+         * Построитель Product.
+         */
+        public static final class Builder {
+            private String certificateDocument;
+            private String certificateDocumentDate;
+            private String certificateDocumentNumber;
+            private String ownerInn;
+            private String producerInn;
+            private String productionDate;
+            private String tnvedCode;
+            private String uitCode;
+            private String uituCode;
+
+            private Builder() {
+            }
+
+            public Builder certificateDocument(String certificateDocument) {
+                this.certificateDocument = certificateDocument;
+                return this;
+            }
+
+            public Builder certificateDocumentDate(String certificateDocumentDate) {
+                this.certificateDocumentDate = certificateDocumentDate;
+                return this;
+            }
+
+            public Builder certificateDocumentNumber(String certificateDocumentNumber) {
+                this.certificateDocumentNumber = certificateDocumentNumber;
+                return this;
+            }
+
+            public Builder ownerInn(String ownerInn) {
+                this.ownerInn = ownerInn;
+                return this;
+            }
+
+            public Builder producerInn(String producerInn) {
+                this.producerInn = producerInn;
+                return this;
+            }
+
+            public Builder productionDate(String productionDate) {
+                this.productionDate = productionDate;
+                return this;
+            }
+
+            public Builder tnvedCode(String tnvedCode) {
+                this.tnvedCode = tnvedCode;
+                return this;
+            }
+
+            public Builder uitCode(String uitCode) {
+                this.uitCode = uitCode;
+                return this;
+            }
+
+            public Builder uituCode(String uituCode) {
+                this.uituCode = uituCode;
+                return this;
+            }
+
+            public Product build() {
+                return new Product(certificateDocument, certificateDocumentDate, certificateDocumentNumber, ownerInn, producerInn, productionDate, tnvedCode, uitCode, uituCode);
+            }
+        }
     }
 }
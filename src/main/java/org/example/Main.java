@@ -5,14 +5,17 @@ import java.util.concurrent.TimeUnit;
 public class Main {
 
     public static void main(String[] args) {
-        try {
-            // Создаем экземпляр CrptApi с ограничением 10 запросов в секунду
-            CrptApi api = new CrptApi(TimeUnit.SECONDS, 10);
+        // Создаем экземпляр CrptApi с ограничением 10 запросов в секунду
+        try (CrptApi api = new CrptApi(TimeUnit.SECONDS, 10)) {
 
             // Вызываем метод createIntroduceGoodsDocument для создания документа
-            api.createIntroduceGoodsDocument(new CrptApi.CreateGoodsDocumentRequest());
+            CrptApi.DocumentResponse response = api.createIntroduceGoodsDocument(CrptApi.CreateGoodsDocumentRequest.builder()
+                    .docType("LP_INTRODUCE_GOODS")
+                    .build());
+            System.out.println("Response status code: " + response.statusCode());
+            System.out.println("Document id: " + response.documentId());
 
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | CrptApi.CrptApiException e) {
             e.printStackTrace();
         }
     }
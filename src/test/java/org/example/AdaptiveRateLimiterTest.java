@@ -0,0 +1,97 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import javax.net.ssl.SSLSession;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveRateLimiterTest {
+
+    @Test
+    void retryAfterPausesPermits() {
+        CrptApi.AdaptiveRateLimiter limiter = new CrptApi.AdaptiveRateLimiter(100, 1, 1000, 10, 0.5);
+
+        limiter.onResponse(response(429, Map.of("Retry-After", "2")));
+
+        assertTrue(limiter.nanosToNextPermit() > Duration.ofMillis(1900).toNanos());
+        assertEquals(-1, limiter.tryReserve(Duration.ofSeconds(1).toNanos()));
+    }
+
+    @Test
+    void exhaustedQuotaPausesUntilReset() {
+        CrptApi.AdaptiveRateLimiter limiter = new CrptApi.AdaptiveRateLimiter(100, 1, 1000, 10, 0.5);
+
+        limiter.onResponse(response(200, Map.of("X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "3")));
+
+        assertTrue(limiter.nanosToNextPermit() > Duration.ofMillis(2900).toNanos());
+    }
+
+    @Test
+    void remainingQuotaCapsRate() {
+        CrptApi.AdaptiveRateLimiter limiter = new CrptApi.AdaptiveRateLimiter(100, 1, 1000, 10, 0.5);
+
+        limiter.onResponse(response(200, Map.of("X-RateLimit-Remaining", "20", "X-RateLimit-Reset", "10")));
+
+        // 20 запросов за 10 секунд; прирост AIMD за этот ответ добавляет не больше 10 / 2
+        assertTrue(limiter.currentRate() <= 2 + 5, "Rate " + limiter.currentRate());
+    }
+
+    private static HttpResponse<String> response(int status, Map<String, String> headers) {
+        HttpHeaders httpHeaders = HttpHeaders.of(
+                headers.entrySet().stream().collect(Collectors.toMap(
+                        Map.Entry::getKey, entry -> List.of(entry.getValue()))),
+                (name, value) -> true);
+        return new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return status;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return HttpRequest.newBuilder(URI.create("http://localhost/")).build();
+            }
+
+            @Override
+            public Optional<HttpResponse<String>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return httpHeaders;
+            }
+
+            @Override
+            public String body() {
+                return "";
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return request().uri();
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Проверяет пакетную отправку против локального сервера, отвечающего doc_id документа.
+ */
+class BatchTest {
+    private static final int DOCUMENTS = 40;
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private HttpServer server;
+    private ExecutorService serverThreads;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            int current = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(current, Math::max);
+            try {
+                String docId = mapper.readTree(exchange.getRequestBody()).path("doc_id").textValue();
+                // Ответы приходят не в порядке отправки
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1, 20));
+                byte[] body = mapper.writeValueAsBytes(Map.of("value", docId));
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverThreads.close();
+    }
+
+    @Test
+    void resultsFollowRequestOrderAndInFlightLimitIsRespected() throws Exception {
+        try (CrptApi api = apiBuilder().build()) {
+            List<CompletableFuture<CrptApi.DocumentResponse>> results = api.createIntroduceGoodsDocuments(
+                    IntStream.range(0, DOCUMENTS).mapToObj(BatchTest::document));
+
+            assertEquals(DOCUMENTS, results.size());
+            for (int i = 0; i < DOCUMENTS; i++) {
+                assertEquals("doc-" + i, results.get(i).get(5, TimeUnit.SECONDS).documentId());
+            }
+            assertTrue(maxConcurrent.get() <= MAX_IN_FLIGHT,
+                    "Server saw " + maxConcurrent.get() + " concurrent requests, limit " + MAX_IN_FLIGHT);
+        }
+    }
+
+    @Test
+    void interruptedBatchCancelsStartedDocuments() throws Exception {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        AtomicInteger cancelled = new AtomicInteger();
+        try (CrptApi api = apiBuilder()
+                .rateLimiter(limiter)
+                .listener(new CrptApi.DocumentListener() {
+                    @Override
+                    public void onFailure(CrptApi.CreateGoodsDocumentRequest request, Throwable failure) {
+                        if (failure instanceof CancellationException) {
+                            cancelled.incrementAndGet();
+                        }
+                    }
+                })
+                .build()) {
+            CompletableFuture<Throwable> thrown = new CompletableFuture<>();
+            Thread caller = Thread.ofVirtual().start(() -> {
+                try {
+                    api.createIntroduceGoodsDocuments(IntStream.range(0, DOCUMENTS).mapToObj(BatchTest::document));
+                } catch (Throwable e) {
+                    thrown.complete(e);
+                }
+            });
+            Thread.sleep(100);
+            caller.interrupt();
+
+            assertInstanceOf(InterruptedException.class, thrown.get(5, TimeUnit.SECONDS));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (cancelled.get() < MAX_IN_FLIGHT && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // Документы, ожидавшие разрешения, отменены, а не брошены ждать его
+            assertEquals(MAX_IN_FLIGHT, cancelled.get());
+        }
+    }
+
+    private CrptApi.Builder apiBuilder() {
+        return CrptApi.builder()
+                .apiUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"))
+                .maxInFlight(MAX_IN_FLIGHT)
+                .requestLimit(1000, Duration.ofSeconds(1));
+    }
+
+    private static CrptApi.CreateGoodsDocumentRequest document(int index) {
+        return CrptApi.CreateGoodsDocumentRequest.builder().docId("doc-" + index).build();
+    }
+}
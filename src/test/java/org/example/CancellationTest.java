@@ -0,0 +1,117 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class CancellationTest {
+
+    @Test
+    void lastReleaseCancelsCurrentStage() {
+        CrptApi.Cancellation cancellation = new CrptApi.Cancellation();
+        CompletableFuture<Void> permit = cancellation.track(new CompletableFuture<>());
+
+        assertTrue(cancellation.retain());
+        assertTrue(cancellation.release());
+        assertFalse(permit.isDone(), "One caller is still waiting for the document");
+
+        assertTrue(cancellation.release());
+        assertTrue(permit.isCancelled());
+        assertFalse(cancellation.retain());
+        assertFalse(cancellation.beginSending());
+    }
+
+    @Test
+    void releaseDuringSendingIsDeferredUntilAttemptEnds() {
+        CrptApi.Cancellation cancellation = new CrptApi.Cancellation();
+        assertTrue(cancellation.beginSending());
+
+        // Отправленный запрос не прерывается: вызывающий дождется его результата
+        assertFalse(cancellation.release());
+        assertFalse(cancellation.isCancelled());
+
+        cancellation.endSending();
+        assertTrue(cancellation.isCancelled());
+        CompletableFuture<Void> retryPause = cancellation.track(new CompletableFuture<>());
+        assertTrue(retryPause.isCancelled());
+    }
+
+    @Test
+    void linkedCallersShareUpstreamInterest() {
+        CrptApi.Cancellation leader = new CrptApi.Cancellation();
+        CrptApi.Cancellation follower = new CrptApi.Cancellation();
+        // Повтор doc_id присоединился к follower до того, как тот присоединился к leader
+        assertTrue(follower.retain());
+        assertTrue(leader.retain());
+        follower.link(leader);
+
+        assertTrue(leader.release());
+        assertTrue(follower.release());
+        assertFalse(leader.isCancelled(), "The duplicate of the follower still waits");
+        assertTrue(follower.release());
+        assertTrue(leader.isCancelled());
+    }
+
+    @Test
+    void linkedCallerSeesWhetherSharedSendingReachedServer() {
+        CrptApi.Cancellation leader = new CrptApi.Cancellation();
+        CrptApi.Cancellation follower = new CrptApi.Cancellation();
+        assertTrue(leader.retain());
+        follower.link(leader);
+        assertFalse(follower.mayHaveReachedServer());
+
+        // Документ присоединившегося вызова мог быть создан общей отправкой и не должен отправляться повторно
+        leader.markReached();
+        assertTrue(follower.mayHaveReachedServer());
+    }
+
+    @Test
+    void interruptedCallerCancelsPermitWaitAndListenerIsNotified() throws Exception {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        CompletableFuture<Throwable> notified = new CompletableFuture<>();
+        try (CrptApi api = CrptApi.builder()
+                .rateLimiter(limiter)
+                .listener(new CrptApi.DocumentListener() {
+                    @Override
+                    public void onFailure(CrptApi.CreateGoodsDocumentRequest request, Throwable failure) {
+                        notified.complete(failure);
+                    }
+                })
+                .build()) {
+            CompletableFuture<Throwable> thrown = new CompletableFuture<>();
+            Thread caller = Thread.ofVirtual().start(() -> {
+                try {
+                    api.createIntroduceGoodsDocument(CrptApi.CreateGoodsDocumentRequest.builder().build());
+                } catch (Throwable e) {
+                    thrown.complete(e);
+                }
+            });
+            Thread.sleep(100);
+            caller.interrupt();
+
+            assertInstanceOf(InterruptedException.class, thrown.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(CancellationException.class, notified.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void cancellingAsyncCallStopsItBeforeSending() throws Exception {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        try (CrptApi api = CrptApi.builder().rateLimiter(limiter).fairScheduling().build()) {
+            CompletableFuture<CrptApi.DocumentResponse> result =
+                    api.createIntroduceGoodsDocumentAsync(CrptApi.CreateGoodsDocumentRequest.builder().build());
+
+            assertTrue(result.cancel(true));
+            assertThrows(CancellationException.class, result::join);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    @Test
+    void failuresBeforeSendingDoNotOpenBreaker() {
+        CrptApi.CircuitBreaker breaker = new CrptApi.CircuitBreaker(4, 0.5, Duration.ofMinutes(1), 1);
+        CrptApi.TokenSource failing = participant -> CompletableFuture.failedFuture(new IOException("Auth is down"));
+        try (CrptApi api = CrptApi.builder()
+                .requestLimit(1000, Duration.ofSeconds(1))
+                .circuitBreaker(breaker)
+                .authentication(failing)
+                .build()) {
+            for (int i = 0; i < 10; i++) {
+                assertThrows(CrptApi.CrptApiException.class,
+                        () -> api.createIntroduceGoodsDocument(CrptApi.CreateGoodsDocumentRequest.builder().build()));
+            }
+        }
+
+        // Сбой получения токена не означает недоступность API
+        assertEquals(CrptApi.CircuitBreaker.State.CLOSED, breaker.state());
+    }
+}
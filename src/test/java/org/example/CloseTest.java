@@ -0,0 +1,33 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class CloseTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void callWaitingForPermitFailsAfterClose(boolean scheduling) {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofMillis(300));
+        CrptApi.Builder builder = CrptApi.builder().rateLimiter(limiter);
+        if (scheduling) {
+            builder.fairScheduling();
+        }
+        CompletableFuture<CrptApi.DocumentResponse> result;
+        try (CrptApi api = builder.build()) {
+            limiter.tryReserve(0);
+            result = api.createIntroduceGoodsDocumentAsync(CrptApi.CreateGoodsDocumentRequest.builder().build());
+        }
+
+        // Разрешение наступает после закрытия: вызов должен завершиться ошибкой, а не зависнуть
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> result.get(3, TimeUnit.SECONDS));
+        assertInstanceOf(CrptApi.CrptApiException.class, failure.getCause());
+    }
+}
@@ -0,0 +1,29 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class CoalescingTest {
+
+    @Test
+    void followerHonorsItsOwnDeadline() throws Exception {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        try (CrptApi api = CrptApi.builder().rateLimiter(limiter).coalesceIdenticalDocuments(true).build()) {
+            CrptApi.CreateGoodsDocumentRequest request = CrptApi.CreateGoodsDocumentRequest.builder().docId("7").build();
+            CompletableFuture<CrptApi.DocumentResponse> leader = api.createIntroduceGoodsDocumentAsync(request);
+            CompletableFuture<CrptApi.DocumentResponse> follower =
+                    api.createIntroduceGoodsDocumentAsync(request, Duration.ofMillis(200));
+
+            Throwable failure = follower.handle((response, error) -> error).get(5, TimeUnit.SECONDS);
+            assertInstanceOf(CrptApi.DeadlineExceededException.class,
+                    failure instanceof CompletionException ? failure.getCause() : failure);
+            leader.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class DeadlineTest {
+
+    @Test
+    void permitTooLateToSendIsNotReserved() {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofSeconds(1));
+        try (CrptApi api = CrptApi.builder().rateLimiter(limiter).build()) {
+            limiter.tryReserve(0);
+            // Разрешение наступит через секунду, и на отправку останется меньше минимального бюджета
+            assertThrows(CrptApi.DeadlineExceededException.class, () -> api.createIntroduceGoodsDocument(
+                    CrptApi.CreateGoodsDocumentRequest.builder().build(), Duration.ofMillis(1020)));
+        }
+
+        long waitNanos = limiter.tryReserve(Long.MAX_VALUE);
+        assertTrue(waitNanos < Duration.ofSeconds(1).toNanos(), "The permit was consumed by a rejected call");
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeduplicationTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void duplicateDocIdIsNotSignedAgain() {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        AtomicInteger signatures = new AtomicInteger();
+        try (CrptApi api = CrptApi.builder()
+                .rateLimiter(limiter)
+                .deduplication(Duration.ofMinutes(1))
+                .signer(document -> {
+                    signatures.incrementAndGet();
+                    return new byte[0];
+                })
+                .build()) {
+            CrptApi.CreateGoodsDocumentRequest request = CrptApi.CreateGoodsDocumentRequest.builder().docId("42").build();
+            for (int i = 0; i < 10; i++) {
+                api.createIntroduceGoodsDocumentAsync(request);
+            }
+        }
+
+        assertEquals(1, signatures.get());
+    }
+
+    @Test
+    void sweepRewritesStoreWithoutExpiredEntries() throws Exception {
+        Path store = dir.resolve("dedup");
+        try (CrptApi.DedupIndex index = new CrptApi.DedupIndex(Duration.ofMillis(500), store)) {
+            for (int i = 0; i < 100; i++) {
+                storeSuccess(index, "old-" + i);
+            }
+            assertEquals(100, Files.readAllLines(store, StandardCharsets.UTF_8).size());
+
+            Thread.sleep(700);
+            // Первое обращение после ttl очищает индекс и переписывает файл
+            storeSuccess(index, "new");
+            assertEquals(1, Files.readAllLines(store, StandardCharsets.UTF_8).size());
+            storeSuccess(index, "newer");
+        }
+
+        try (CrptApi.DedupIndex reopened = new CrptApi.DedupIndex(Duration.ofMillis(500), store)) {
+            CompletableFuture<CrptApi.DocumentResponse> retry = new CompletableFuture<>();
+            assertNotSame(retry, reopened.claim("newer", retry, null).result());
+            assertSame(retry, reopened.claim("old-0", retry, null).result());
+        }
+    }
+
+    private static void storeSuccess(CrptApi.DedupIndex index, String docId) {
+        CompletableFuture<CrptApi.DocumentResponse> result = new CompletableFuture<>();
+        CrptApi.DedupIndex.Entry entry = index.claim(docId, result, null);
+        index.complete(docId, entry, new CrptApi.DocumentResponse(200, docId, null, "{}"), null);
+        result.complete(new CrptApi.DocumentResponse(200, docId, null, "{}"));
+    }
+}
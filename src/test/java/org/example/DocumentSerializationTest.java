@@ -0,0 +1,70 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Проверяет имена полей JSON документа: API ожидает snake_case, кроме importRequest.
+ */
+class DocumentSerializationTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void documentRoundTripsWithApiFieldNames() throws Exception {
+        CrptApi.CreateGoodsDocumentRequest request = CrptApi.CreateGoodsDocumentRequest.builder()
+                .description("description")
+                .docId("doc-1")
+                .docStatus("DRAFT")
+                .docType("LP_INTRODUCE_GOODS")
+                .importRequest(true)
+                .ownerInn("7700000001")
+                .participantInn("7700000002")
+                .producerInn("7700000003")
+                .productionDate("2024-01-15")
+                .productionType("OWN_PRODUCTION")
+                .products(CrptApi.Product.builder()
+                        .certificateDocument("CONFORMITY_CERTIFICATE")
+                        .certificateDocumentDate("2024-01-10")
+                        .certificateDocumentNumber("RU-123")
+                        .ownerInn("7700000001")
+                        .producerInn("7700000003")
+                        .productionDate("2024-01-15")
+                        .tnvedCode("6401100000")
+                        .uitCode("010461111111111121abc")
+                        .uituCode("uitu-1")
+                        .build())
+                .regDate("2024-01-16")
+                .regNumber("reg-1")
+                .build();
+
+        byte[] json = mapper.writeValueAsBytes(request);
+        JsonNode document = mapper.readTree(json);
+
+        for (String field : List.of("description", "doc_id", "doc_status", "doc_type", "owner_inn",
+                "participant_inn", "producer_inn", "production_date", "production_type", "products",
+                "reg_date", "reg_number")) {
+            assertTrue(document.has(field), "Missing field " + field + " in " + document);
+        }
+        assertTrue(document.path("importRequest").booleanValue(), "importRequest must stay camelCase");
+        assertFalse(document.has("import_request"));
+        assertFalse(document.has("docId"));
+        assertEquals(13, document.size(), "Unexpected fields in " + document);
+
+        JsonNode product = document.path("products").path(0);
+        for (String field : List.of("certificate_document", "certificate_document_date",
+                "certificate_document_number", "owner_inn", "producer_inn", "production_date",
+                "tnved_code", "uit_code", "uitu_code")) {
+            assertTrue(product.has(field), "Missing field " + field + " in " + product);
+        }
+        assertEquals(9, product.size(), "Unexpected fields in " + product);
+        assertEquals("010461111111111121abc", product.path("uit_code").textValue());
+
+        assertEquals(request, mapper.readValue(json, CrptApi.CreateGoodsDocumentRequest.class));
+    }
+}
@@ -0,0 +1,93 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/**
+ * Нагрузочная проверка ограничителей: tryReserve из нескольких потоков и проверка каждого окна
+ * по точным назначенным временам разрешений.
+ */
+final class LimiterStress {
+    private static final int THREADS = 8;
+    private static final int RESERVATIONS_PER_THREAD = 5_000;
+
+    /**
+     * Часы, запоминающие последнее выданное потоку значение: время разрешения равно ему плюс ожидание.
+     */
+    static final class RecordingClock implements LongSupplier {
+        private final ThreadLocal<Long> last = new ThreadLocal<>();
+
+        @Override
+        public long getAsLong() {
+            long now = System.nanoTime();
+            last.set(now);
+            return now;
+        }
+
+        long last() {
+            return last.get();
+        }
+    }
+
+    private LimiterStress() {
+    }
+
+    /**
+     * @param limiter Ограничитель, читающий время из clock.
+     */
+    static void assertNoWindowExceeded(CrptApi.RateLimiter limiter, RecordingClock clock,
+                                       int limit, long windowNanos) throws Exception {
+        assertNoWindowExceeded(limiter, clock, new int[]{limit}, new long[]{windowNanos});
+    }
+
+    /**
+     * Проверяет все окна по одной последовательности разрешений.
+     *
+     * @param limits      Лимиты окон.
+     * @param windowNanos Длительности окон в том же порядке.
+     */
+    static void assertNoWindowExceeded(CrptApi.RateLimiter limiter, RecordingClock clock,
+                                       int[] limits, long[] windowNanos) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<long[]>> results = new ArrayList<>();
+        try (ExecutorService threads = Executors.newFixedThreadPool(THREADS)) {
+            for (int t = 0; t < THREADS; t++) {
+                results.add(threads.submit(() -> {
+                    long[] times = new long[RESERVATIONS_PER_THREAD];
+                    start.await();
+                    for (int i = 0; i < times.length; i++) {
+                        long waitNanos = limiter.tryReserve(Long.MAX_VALUE);
+                        times[i] = clock.last() + waitNanos;
+                    }
+                    return times;
+                }));
+            }
+            start.countDown();
+        }
+
+        long[] scheduled = new long[THREADS * RESERVATIONS_PER_THREAD];
+        int position = 0;
+        for (Future<long[]> result : results) {
+            long[] times = result.get();
+            System.arraycopy(times, 0, scheduled, position, times.length);
+            position += times.length;
+        }
+        Arrays.sort(scheduled);
+        // В окне больше limit разрешений, только если разрешения i и i + limit ближе окна
+        for (int w = 0; w < limits.length; w++) {
+            int limit = limits[w];
+            for (int i = 0; i + limit < scheduled.length; i++) {
+                assertTrue(scheduled[i + limit] - scheduled[i] >= windowNanos[w],
+                        "More than " + limit + " permits within one window starting at permit " + i);
+            }
+        }
+    }
+}
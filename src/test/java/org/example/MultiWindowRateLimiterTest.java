@@ -0,0 +1,37 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class MultiWindowRateLimiterTest {
+
+    @Test
+    void concurrentReservationsNeverExceedAnyWindow() throws Exception {
+        LimiterStress.RecordingClock clock = new LimiterStress.RecordingClock();
+        CrptApi.MultiWindowRateLimiter limiter = new CrptApi.MultiWindowRateLimiter(clock,
+                new CrptApi.MultiWindowRateLimiter.Window(5, Duration.ofMillis(10)),
+                new CrptApi.MultiWindowRateLimiter.Window(20, Duration.ofMillis(100)));
+
+        LimiterStress.assertNoWindowExceeded(limiter, clock,
+                new int[]{5, 20}, new long[]{Duration.ofMillis(10).toNanos(), Duration.ofMillis(100).toNanos()});
+    }
+
+    @Test
+    void longerWindowDelaysPermitsAllowedByShorterOne() {
+        long[] now = {0};
+        CrptApi.MultiWindowRateLimiter limiter = new CrptApi.MultiWindowRateLimiter(() -> now[0],
+                new CrptApi.MultiWindowRateLimiter.Window(2, Duration.ofNanos(10)),
+                new CrptApi.MultiWindowRateLimiter.Window(3, Duration.ofNanos(100)));
+
+        assertEquals(0, limiter.tryReserve(0));
+        assertEquals(0, limiter.tryReserve(0));
+        assertEquals(10, limiter.tryReserve(10));
+        // Короткое окно уже разрешает четвертое разрешение, но длинное - только через 100 нс после первого
+        now[0] = 20;
+        assertEquals(-1, limiter.tryReserve(79));
+        assertEquals(80, limiter.nanosToNextPermit());
+        assertEquals(80, limiter.tryReserve(80));
+    }
+}
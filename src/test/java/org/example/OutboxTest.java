@@ -0,0 +1,60 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboxTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void acknowledgedSpaceIsReclaimedWhilePendingEntriesRemain() throws Exception {
+        Path journal = dir.resolve("outbox");
+        byte[] payload = new byte[100];
+        try (CrptApi.Outbox outbox = new CrptApi.Outbox(journal, 4096)) {
+            outbox.recover();
+            CrptApi.Outbox.Entry stuck = outbox.append("stuck".getBytes(StandardCharsets.UTF_8));
+            // Одна неподтвержденная запись не должна мешать постоянной нагрузке
+            for (int i = 0; i < 1000; i++) {
+                outbox.ack(outbox.append(payload));
+            }
+            CrptApi.Outbox.Entry last = outbox.append("last".getBytes(StandardCharsets.UTF_8));
+
+            assertArrayEquals("stuck".getBytes(StandardCharsets.UTF_8), outbox.read(stuck));
+            assertArrayEquals("last".getBytes(StandardCharsets.UTF_8), outbox.read(last));
+        }
+
+        try (CrptApi.Outbox reopened = new CrptApi.Outbox(journal, 4096)) {
+            List<CrptApi.Outbox.Entry> recovered = reopened.recover();
+            assertEquals(2, recovered.size());
+            assertArrayEquals("stuck".getBytes(StandardCharsets.UTF_8), reopened.read(recovered.get(0)));
+            assertArrayEquals("last".getBytes(StandardCharsets.UTF_8), reopened.read(recovered.get(1)));
+        }
+    }
+
+    @Test
+    void closeCancelsDispatchesWaitingForPermitAndKeepsThemInJournal() throws Exception {
+        Path journal = dir.resolve("outbox");
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        long started = System.nanoTime();
+        try (CrptApi api = CrptApi.builder().rateLimiter(limiter).outbox(journal, 4096).build()) {
+            api.enqueueIntroduceGoodsDocument(CrptApi.CreateGoodsDocumentRequest.builder().docId("1").build());
+            Thread.sleep(100);
+        }
+
+        assertTrue(System.nanoTime() - started < Duration.ofSeconds(5).toNanos(), "close() waited for the permit");
+        try (CrptApi.Outbox reopened = new CrptApi.Outbox(journal, 4096)) {
+            assertEquals(1, reopened.recover().size());
+        }
+    }
+}
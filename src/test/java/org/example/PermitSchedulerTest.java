@@ -0,0 +1,123 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PermitSchedulerTest {
+
+    @Test
+    void timedOutWaiterIsCompletedOnExecutorNotOnSharedTimerThread() throws Exception {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+        limiter.tryReserve(0);
+        try (ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "scheduler-test"))) {
+            CrptApi.PermitScheduler scheduler = new CrptApi.PermitScheduler(limiter, CrptApi.PriorityMode.FIFO, executor);
+
+            CompletableFuture<String> thread = scheduler
+                    .acquire(CrptApi.Priority.NORMAL, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20),
+                            CrptApi.DeadlineExceededException::new)
+                    .handle((ignored, failure) -> {
+                        assertInstanceOf(CrptApi.DeadlineExceededException.class,
+                                failure instanceof CompletionException ? failure.getCause() : failure);
+                        return Thread.currentThread().getName();
+                    });
+
+            // Поток таймера CompletableFuture один на JVM: продолжения в нем задерживают все ожидания процесса
+            assertFalse(thread.get(5, TimeUnit.SECONDS).startsWith("CompletableFutureDelayScheduler"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 15, 32, 49})
+    void weightedSharesDoNotDependOnArrivalsBetweenPermits(int arrivalsPerPermit) {
+        ManualLimiter limiter = new ManualLimiter();
+        CrptApi.PermitScheduler scheduler = new CrptApi.PermitScheduler(limiter, CrptApi.PriorityMode.WEIGHTED, Runnable::run);
+        Map<CrptApi.Priority, Integer> grants = new EnumMap<>(CrptApi.Priority.class);
+        for (int i = 0; i < 200; i++) {
+            enqueue(scheduler, CrptApi.Priority.URGENT, grants);
+            enqueue(scheduler, CrptApi.Priority.BULK, grants);
+        }
+
+        for (int permit = 0; permit < 170; permit++) {
+            // Прибытия без свободного разрешения не должны сдвигать очередность
+            for (int i = 0; i < arrivalsPerPermit; i++) {
+                enqueue(scheduler, CrptApi.Priority.URGENT, grants);
+            }
+            limiter.available++;
+            scheduler.drain();
+        }
+
+        // Вес URGENT 16, BULK 1: BULK получает каждое 17-е разрешение
+        assertEquals(160, grants.getOrDefault(CrptApi.Priority.URGENT, 0));
+        assertEquals(10, grants.getOrDefault(CrptApi.Priority.BULK, 0));
+    }
+
+    @Test
+    void strictGrantsHighestPriorityFirst() {
+        assertEquals(List.of(CrptApi.Priority.URGENT, CrptApi.Priority.NORMAL, CrptApi.Priority.BULK, CrptApi.Priority.BULK),
+                grantOrder(CrptApi.PriorityMode.STRICT));
+    }
+
+    @Test
+    void fifoGrantsInArrivalOrder() {
+        assertEquals(List.of(CrptApi.Priority.BULK, CrptApi.Priority.NORMAL, CrptApi.Priority.URGENT, CrptApi.Priority.BULK),
+                grantOrder(CrptApi.PriorityMode.FIFO));
+    }
+
+    private static List<CrptApi.Priority> grantOrder(CrptApi.PriorityMode mode) {
+        ManualLimiter limiter = new ManualLimiter();
+        CrptApi.PermitScheduler scheduler = new CrptApi.PermitScheduler(limiter, mode, Runnable::run);
+        List<CrptApi.Priority> order = new ArrayList<>();
+        for (CrptApi.Priority priority : List.of(CrptApi.Priority.BULK, CrptApi.Priority.NORMAL,
+                CrptApi.Priority.URGENT, CrptApi.Priority.BULK)) {
+            scheduler.acquire(priority, Long.MAX_VALUE, CrptApi.DeadlineExceededException::new)
+                    .thenRun(() -> order.add(priority));
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.available++;
+            scheduler.drain();
+        }
+        return order;
+    }
+
+    private static void enqueue(CrptApi.PermitScheduler scheduler, CrptApi.Priority priority,
+                                Map<CrptApi.Priority, Integer> grants) {
+        scheduler.acquire(priority, Long.MAX_VALUE, CrptApi.DeadlineExceededException::new)
+                .thenRun(() -> grants.merge(priority, 1, Integer::sum));
+    }
+
+    /**
+     * Ограничитель, выдающий только явно добавленные разрешения; таймер пробуждения не срабатывает за время теста.
+     */
+    private static final class ManualLimiter implements CrptApi.RateLimiter {
+        int available;
+
+        @Override
+        public long tryReserve(long maxWaitNanos) {
+            if (available == 0) {
+                return -1;
+            }
+            available--;
+            return 0;
+        }
+
+        @Override
+        public long nanosToNextPermit() {
+            return TimeUnit.HOURS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import org.junit.jupiter.api.Test;
+
+class RetryPolicyTest {
+
+    @Test
+    void defaultPolicyRetriesOnlyFailuresThatNeverReachedServer() {
+        CrptApi.RetryPolicy policy = CrptApi.RetryPolicy.DEFAULT;
+
+        assertTrue(policy.isRetryable(new ConnectException("refused")));
+        assertTrue(policy.isRetryable(new HttpConnectTimeoutException("connect timed out")));
+        assertFalse(policy.isRetryable(new HttpTimeoutException("request timed out")));
+        assertFalse(policy.isRetryable(new IOException("connection reset")));
+
+        assertTrue(policy.isRetryable(408));
+        assertTrue(policy.isRetryable(429));
+        assertTrue(policy.isRetryable(503));
+        assertFalse(policy.isRetryable(502));
+        assertFalse(policy.isRetryable(504));
+        assertFalse(policy.isRetryable(500));
+    }
+
+    @Test
+    void ambiguousFailuresAreRetriedOnlyWhenEnabled() {
+        CrptApi.RetryPolicy policy = CrptApi.RetryPolicy.DEFAULT.retryingAmbiguousFailures();
+
+        assertTrue(policy.isRetryable(new HttpTimeoutException("request timed out")));
+        assertTrue(policy.isRetryable(new IOException("connection reset")));
+        assertTrue(policy.isRetryable(502));
+        assertTrue(policy.isRetryable(504));
+        assertFalse(policy.isRetryable(500));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Проверяет общий лимит нескольких JVM, согласующихся через один файл квоты.
+ */
+class SharedFileQuotaTest {
+    private static final int PROCESSES = 3;
+    private static final int PERMITS_PER_PROCESS = 10;
+    private static final int LIMIT = 10;
+    private static final long WINDOW_MILLIS = 1000;
+    // Момент печати отстает от назначенного времени разрешения на задержку пробуждения процесса
+    private static final long WAKEUP_TOLERANCE_MILLIS = 50;
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"direct", "leasing"})
+    void processesSharingQuotaFileStayWithinGlobalLimit(String mode) throws Exception {
+        Path quota = directory.resolve("quota-" + mode);
+        // Процессы начинают одновременно, когда все JVM уже запущены
+        long startAtMillis = System.currentTimeMillis() + 2000;
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            processes.add(new ProcessBuilder(
+                    Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    Worker.class.getName(), quota.toString(), mode, String.valueOf(startAtMillis))
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("worker-" + mode + "-" + i + ".log").toFile())
+                    .start());
+        }
+
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < processes.size(); i++) {
+            Process process = processes.get(i);
+            assertTrue(process.waitFor(30, TimeUnit.SECONDS), "Worker did not finish");
+            List<String> lines = Files.readAllLines(directory.resolve("worker-" + mode + "-" + i + ".log"));
+            assertEquals(0, process.exitValue(), String.join("\n", lines));
+            lines.forEach(line -> times.add(Long.parseLong(line.trim())));
+        }
+
+        assertEquals(PROCESSES * PERMITS_PER_PROCESS, times.size());
+        times.sort(null);
+        for (int i = 0; i + LIMIT < times.size(); i++) {
+            assertTrue(times.get(i + LIMIT) - times.get(i) >= WINDOW_MILLIS - WAKEUP_TOLERANCE_MILLIS,
+                    "More than " + LIMIT + " permits within one window across processes: " + times);
+        }
+    }
+
+    @Test
+    void incompatibleQuotaFileIsRejectedWithoutKeepingItLocked() throws Exception {
+        Path quota = directory.resolve("quota");
+        try (CrptApi.SharedFileQuota first = new CrptApi.SharedFileQuota(quota, LIMIT, Duration.ofMillis(WINDOW_MILLIS))) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> new CrptApi.SharedFileQuota(quota, LIMIT + 1, Duration.ofMillis(WINDOW_MILLIS)));
+            // Неудачное открытие не оставило блокировок: квота по-прежнему выдает разрешения
+            assertEquals(0, first.tryReserve(0));
+        }
+    }
+
+    /**
+     * Процесс-реплика: получает разрешения из общего файла квоты и печатает моменты их получения.
+     */
+    public static final class Worker {
+        public static void main(String[] args) throws IOException, InterruptedException {
+            Path path = Path.of(args[0]);
+            long startAtMillis = Long.parseLong(args[2]);
+            try (CrptApi.SharedFileQuota quota = new CrptApi.SharedFileQuota(path, LIMIT, Duration.ofMillis(WINDOW_MILLIS))) {
+                CrptApi.RateLimiter limiter = args[1].equals("leasing")
+                        ? new CrptApi.LeasingRateLimiter(quota, 3, Duration.ofMillis(200))
+                        : quota;
+                Thread.sleep(Math.max(0, startAtMillis - System.currentTimeMillis()));
+                for (int i = 0; i < PERMITS_PER_PROCESS; i++) {
+                    limiter.acquire();
+                    System.out.println(System.currentTimeMillis());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowRateLimiterTest {
+
+    @Test
+    void concurrentReservationsNeverExceedLimitInAnyWindow() throws Exception {
+        Duration window = Duration.ofMillis(10);
+        LimiterStress.RecordingClock clock = new LimiterStress.RecordingClock();
+
+        LimiterStress.assertNoWindowExceeded(
+                new CrptApi.SlidingWindowRateLimiter(50, window, clock), clock, 50, window.toNanos());
+    }
+
+    @Test
+    void rejectedReservationDoesNotConsumePermit() {
+        CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(2, Duration.ofHours(1));
+
+        assertEquals(0, limiter.tryReserve(0));
+        assertEquals(0, limiter.tryReserve(0));
+        // Третье разрешение наступит через час: ни одна из этих попыток не должна занять слот
+        assertEquals(-1, limiter.tryReserve(Duration.ofMinutes(1).toNanos()));
+        assertEquals(-1, limiter.tryReserve(0));
+        assertTrue(limiter.tryReserve(Duration.ofHours(2).toNanos()) > Duration.ofMinutes(59).toNanos());
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class StreamingJsonPublisherTest {
+    private static final int PRODUCTS = 5_000;
+
+    @Test
+    void chunksConcatenateToDocumentAndBufferingIsBounded() throws Exception {
+        CrptApi.CreateGoodsDocumentRequest request = CrptApi.CreateGoodsDocumentRequest.builder()
+                .docId("large")
+                .products(IntStream.range(0, PRODUCTS)
+                        .mapToObj(i -> CrptApi.Product.builder()
+                                .uitCode("010461111111111121" + i)
+                                .tnvedCode("6401100000")
+                                .certificateDocumentNumber("RU-" + "x".repeat(200) + i)
+                                .build())
+                        .toList())
+                .build();
+        byte[] expected = CrptApi.documentWriter.writeValueAsBytes(request);
+        assertTrue(expected.length > 10 * CrptApi.StreamingJsonPublisher.CHUNK_SIZE, "Document is too small");
+
+        AtomicInteger maxLag = new AtomicInteger();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        try (ExecutorService executor = Executors.newCachedThreadPool()) {
+            new CrptApi.StreamingJsonPublisher(request, executor, lag -> maxLag.accumulateAndGet(lag, Math::max))
+                    .subscribe(new Flow.Subscriber<>() {
+                        private Flow.Subscription subscription;
+                        private int chunks;
+
+                        @Override
+                        public void onSubscribe(Flow.Subscription subscription) {
+                            this.subscription = subscription;
+                            subscription.request(1);
+                        }
+
+                        @Override
+                        public void onNext(ByteBuffer chunk) {
+                            byte[] bytes = new byte[chunk.remaining()];
+                            chunk.get(bytes);
+                            received.writeBytes(bytes);
+                            chunks++;
+                            // Медленный подписчик: сериализация должна ждать его, а не копить части
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            subscription.request(1);
+                        }
+
+                        @Override
+                        public void onError(Throwable failure) {
+                            done.completeExceptionally(failure);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            done.complete(chunks);
+                        }
+                    });
+
+            int chunks = done.get(30, TimeUnit.SECONDS);
+            assertEquals((expected.length + CrptApi.StreamingJsonPublisher.CHUNK_SIZE - 1)
+                    / CrptApi.StreamingJsonPublisher.CHUNK_SIZE, chunks);
+        }
+
+        assertArrayEquals(expected, received.toByteArray());
+        // Еще одна часть в это время заполняется генератором
+        assertTrue(maxLag.get() + 1 <= CrptApi.StreamingJsonPublisher.MAX_BUFFERED_CHUNKS,
+                maxLag.get() + 1 + " chunks were held at once");
+        assertTrue(maxLag.get() > 1, "The subscriber was never slower than serialization, the bound is not tested");
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TenantRouterTest {
+
+    @Test
+    void idleTenantIsEvictedWithoutFurtherTraffic() throws Exception {
+        try (CrptApi.TenantRouter router = new CrptApi.TenantRouter(inn -> {
+            CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+            limiter.tryReserve(0);
+            return CrptApi.builder().rateLimiter(limiter);
+        }, Duration.ofMillis(100))) {
+            CompletableFuture<CrptApi.DocumentResponse> result = router.createIntroduceGoodsDocumentAsync(
+                    CrptApi.CreateGoodsDocumentRequest.builder().participantInn("7700000000").build());
+            result.cancel(true);
+            assertEquals(1, router.tenantCount());
+
+            // Новых обращений нет: экземпляр закрывается фоновой проверкой
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (router.tenantCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, router.tenantCount());
+        }
+    }
+
+    @Test
+    void closedRouterRejectsDocuments() {
+        CrptApi.TenantRouter router = new CrptApi.TenantRouter(inn -> CrptApi.builder(), Duration.ofMinutes(1));
+        router.close();
+
+        assertThrows(IllegalStateException.class, () -> router.createIntroduceGoodsDocumentAsync(
+                CrptApi.CreateGoodsDocumentRequest.builder().participantInn("7700000000").build()));
+        assertEquals(0, router.tenantCount());
+    }
+
+    @Test
+    void concurrentFirstCallsShareOneTenant() throws Exception {
+        AtomicInteger builds = new AtomicInteger();
+        CountDownLatch bothBuilding = new CountDownLatch(2);
+        try (CrptApi.TenantRouter router = new CrptApi.TenantRouter(inn -> {
+            builds.incrementAndGet();
+            bothBuilding.countDown();
+            try {
+                // Создание выполняется вне compute, поэтому второй вызов не ждет первого
+                bothBuilding.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            CrptApi.SlidingWindowRateLimiter limiter = new CrptApi.SlidingWindowRateLimiter(1, Duration.ofHours(1));
+            limiter.tryReserve(0);
+            return CrptApi.builder().rateLimiter(limiter);
+        }, Duration.ofMinutes(1))) {
+            CrptApi.CreateGoodsDocumentRequest request =
+                    CrptApi.CreateGoodsDocumentRequest.builder().participantInn("7700000000").build();
+            CompletableFuture<CompletableFuture<CrptApi.DocumentResponse>> first =
+                    CompletableFuture.supplyAsync(() -> router.createIntroduceGoodsDocumentAsync(request));
+            CompletableFuture<CompletableFuture<CrptApi.DocumentResponse>> second =
+                    CompletableFuture.supplyAsync(() -> router.createIntroduceGoodsDocumentAsync(request));
+
+            first.get(5, TimeUnit.SECONDS).cancel(true);
+            second.get(5, TimeUnit.SECONDS).cancel(true);
+            assertEquals(2, builds.get());
+            assertEquals(1, router.tenantCount());
+        }
+    }
+}
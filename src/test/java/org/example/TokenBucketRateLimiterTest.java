@@ -0,0 +1,38 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TokenBucketRateLimiterTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 50})
+    void concurrentReservationsNeverExceedLimitInAnyWindow(int burst) throws Exception {
+        Duration window = Duration.ofMillis(10);
+        LimiterStress.RecordingClock clock = new LimiterStress.RecordingClock();
+
+        LimiterStress.assertNoWindowExceeded(
+                new CrptApi.TokenBucketRateLimiter(50, window, burst, clock), clock, 50, window.toNanos());
+    }
+
+    @Test
+    void fullBurstIsAvailableImmediately() {
+        CrptApi.TokenBucketRateLimiter limiter = new CrptApi.TokenBucketRateLimiter(5, Duration.ofHours(1), 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryReserve(0));
+        }
+        assertEquals(-1, limiter.tryReserve(0));
+    }
+
+    @Test
+    void rejectsBurstAboveLimit() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new CrptApi.TokenBucketRateLimiter(5, Duration.ofSeconds(1), 6));
+    }
+}
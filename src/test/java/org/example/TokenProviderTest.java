@@ -0,0 +1,41 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TokenProviderTest {
+
+    @Test
+    void invalidationsDoNotMultiplyBackgroundRefreshes() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CrptApi.TokenSource source = participant -> CompletableFuture.completedFuture(new CrptApi.AuthToken(
+                "token-" + fetches.incrementAndGet(), Instant.now().plusMillis(200)));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             CrptApi.TokenProvider provider = new CrptApi.TokenProvider(source, Duration.ofMillis(100), executor)) {
+            // Каждый отвергнутый API токен запускает обновление по требованию
+            for (int i = 0; i < 20; i++) {
+                CrptApi.AuthToken token = provider.token("inn").join();
+                provider.invalidate("inn", token.value());
+                Thread.sleep(25);
+            }
+
+            int before = fetches.get();
+            long end = System.nanoTime() + Duration.ofSeconds(1).toNanos();
+            while (System.nanoTime() < end) {
+                provider.token("inn").join();
+                Thread.sleep(10);
+            }
+            int refreshes = fetches.get() - before;
+
+            // Токен живет 200 мс и обновляется за 100 мс до истечения: около 10 обновлений в секунду
+            assertTrue(refreshes <= 13, "Fetched " + refreshes + " tokens in one second");
+        }
+    }
+}
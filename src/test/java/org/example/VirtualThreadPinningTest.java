@@ -0,0 +1,165 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Проверяет, что ожидание ограничителей в виртуальных потоках не закрепляет поток-носитель.
+ * Закрепления фиксируются событием JFR jdk.VirtualThreadPinned, аналогом -Djdk.tracePinnedThreads.
+ */
+class VirtualThreadPinningTest {
+    private static final int THREADS = 200;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void limiterWaitsDoNotPinCarrierThreads() throws Exception {
+        List<CrptApi.RateLimiter> limiters = List.of(
+                new CrptApi.SlidingWindowRateLimiter(50, Duration.ofMillis(100)),
+                new CrptApi.TokenBucketRateLimiter(50, Duration.ofMillis(100)),
+                new CrptApi.MultiWindowRateLimiter(
+                        new CrptApi.MultiWindowRateLimiter.Window(20, Duration.ofMillis(20)),
+                        new CrptApi.MultiWindowRateLimiter.Window(50, Duration.ofMillis(100))),
+                new CrptApi.AdaptiveRateLimiter(500, 100, 1000, 10, 0.5));
+
+        int pinned = countPinnedEvents(() -> {
+            for (CrptApi.RateLimiter limiter : limiters) {
+                runInVirtualThreads(() -> {
+                    limiter.acquire();
+                    return null;
+                });
+            }
+        });
+
+        assertEquals(0, pinned, "Virtual threads were pinned while waiting for a permit");
+    }
+
+    @Test
+    void sharedQuotaAndSchedulerWaitsDoNotPinCarrierThreads() throws Exception {
+        try (CrptApi.SharedFileQuota quota = new CrptApi.SharedFileQuota(
+                directory.resolve("quota"), 100, Duration.ofMillis(100));
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CrptApi.LeasingRateLimiter leasing = new CrptApi.LeasingRateLimiter(quota, 10, Duration.ofMillis(50));
+            CrptApi.PermitScheduler scheduler = new CrptApi.PermitScheduler(
+                    new CrptApi.SlidingWindowRateLimiter(50, Duration.ofMillis(100)), CrptApi.PriorityMode.WEIGHTED, executor);
+
+            int pinned = countPinnedEvents(() -> {
+                runInVirtualThreads(() -> {
+                    quota.acquire();
+                    return null;
+                });
+                runInVirtualThreads(() -> {
+                    leasing.acquire();
+                    return null;
+                });
+                runInVirtualThreads(() -> scheduler.acquire(CrptApi.Priority.NORMAL, Long.MAX_VALUE,
+                        CrptApi.DeadlineExceededException::new).join());
+            });
+
+            assertEquals(0, pinned, "Virtual threads were pinned while waiting for a permit");
+        }
+    }
+
+    @Test
+    void submitWithVirtualThreadsDoesNotPinCarrierThreads() throws Exception {
+        // Сервер работает на платформенных потоках: события JFR учитывают все виртуальные потоки JVM
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "{\"value\":\"created\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        try (CrptApi api = CrptApi.builder()
+                .apiUri(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/"))
+                .virtualThreads(true)
+                .requestLimit(100, Duration.ofMillis(100))
+                .build()) {
+            AtomicInteger created = new AtomicInteger();
+            int pinned = countPinnedEvents(() -> {
+                List<Future<CrptApi.DocumentResponse>> results = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    results.add(api.submit(CrptApi.CreateGoodsDocumentRequest.builder().docId("doc-" + i).build()));
+                }
+                for (Future<CrptApi.DocumentResponse> result : results) {
+                    if ("created".equals(result.get().documentId())) {
+                        created.incrementAndGet();
+                    }
+                }
+            });
+
+            assertEquals(THREADS, created.get());
+            assertEquals(0, pinned, "Virtual threads were pinned while sending documents");
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).close();
+        }
+    }
+
+    @Test
+    void detectsPinnedWaits() throws Exception {
+        Object monitor = new Object();
+        int pinned = countPinnedEvents(() -> runInVirtualThreads(() -> {
+            synchronized (monitor) {
+                Thread.sleep(1);
+            }
+            return null;
+        }));
+
+        assertTrue(pinned > 0, "Pinning detection does not work, the test above proves nothing");
+    }
+
+    private static int countPinnedEvents(ThrowingRunnable work) throws Exception {
+        AtomicInteger pinned = new AtomicInteger();
+        try (RecordingStream recording = new RecordingStream()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.onEvent("jdk.VirtualThreadPinned", event -> pinned.incrementAndGet());
+            recording.startAsync();
+            work.run();
+            // stop() дожидается доставки всех записанных событий
+            recording.stop();
+        }
+        return pinned.get();
+    }
+
+    private static void runInVirtualThreads(Callable<Void> task) throws Exception {
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(threads.submit(task));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}